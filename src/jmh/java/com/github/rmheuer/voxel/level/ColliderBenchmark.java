@@ -0,0 +1,147 @@
+package com.github.rmheuer.voxel.level;
+
+import com.github.rmheuer.azalea.math.AABB;
+import com.github.rmheuer.azalea.math.Axis;
+import com.github.rmheuer.voxel.block.Block;
+import com.github.rmheuer.voxel.block.Blocks;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the original way of querying block colliders for physics, which
+ * created a translated {@link AABB} for every block and collected them into a
+ * list, with querying into a reused {@link ColliderBuffer}. Each benchmark
+ * does the same work as one player movement step.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColliderBenchmark {
+    private static final int GROUND_Y = 32;
+
+    /** Distance moved in one step. Larger moves query more blocks */
+    @Param({"0.1", "1.0"})
+    public float speed;
+
+    private BlockMap map;
+    private AABB box;
+    private ColliderBuffer buffer;
+
+    @Setup
+    public void setup() {
+        map = new BlockMap(4, 4, 4);
+        Random random = new Random(1234);
+        for (int z = 0; z < map.getBlocksZ(); z++) {
+            for (int x = 0; x < map.getBlocksX(); x++) {
+                for (int y = 0; y < GROUND_Y; y++) {
+                    map.setBlockId(x, y, z, Blocks.ID_STONE);
+                }
+
+                // Scatter some full blocks and slabs over the ground, so the
+                // query returns differently sized boxes
+                int r = random.nextInt(8);
+                if (r == 0)
+                    map.setBlockId(x, GROUND_Y, z, Blocks.ID_COBBLESTONE);
+                else if (r == 1)
+                    map.setBlockId(x, GROUND_Y, z, Blocks.ID_SLAB);
+            }
+        }
+
+        box = AABB.fromBaseCenterSize(32.5f, GROUND_Y, 32.5f, 0.6f, 1.8f, 0.6f);
+        buffer = new ColliderBuffer();
+    }
+
+    // Copy of the original BlockMap.getCollidersWithin(), kept here so the
+    // benchmark still compares against it
+    private static List<AABB> originalCollidersWithin(BlockMap map, AABB region) {
+        List<AABB> colliders = new ArrayList<>();
+
+        int minX = (int) Math.floor(region.minX);
+        int minY = (int) Math.floor(region.minY);
+        int minZ = (int) Math.floor(region.minZ);
+        int maxX = (int) Math.ceil(region.maxX);
+        int maxY = (int) Math.min(Math.ceil(region.maxY), map.getBlocksY());
+        int maxZ = (int) Math.ceil(region.maxZ);
+
+        for (int y = minY; y < maxY; y++) {
+            boolean yInBounds = y >= 0;
+            for (int z = minZ; z < maxZ; z++) {
+                boolean zInBounds = z >= 0 && z < map.getBlocksZ();
+                for (int x = minX; x < maxX; x++) {
+                    boolean xInBounds = x >= 0 && x < map.getBlocksX();
+
+                    if (xInBounds && yInBounds && zInBounds) {
+                        Block block = Blocks.getBlock(map.getBlockId(x, y, z));
+
+                        if (block.isSolid()) {
+                            colliders.add(block.getBoundingBox().translate(x, y, z));
+                        }
+                    } else {
+                        // Make horizontal border of world solid
+                        colliders.add(new AABB(x, y, z, x + 1, y + 1, z + 1));
+                    }
+                }
+            }
+        }
+
+        return colliders;
+    }
+
+    @Benchmark
+    public float originalList() {
+        AABB extended = box.expandTowards(speed, -speed, speed);
+        List<AABB> colliders = originalCollidersWithin(map, extended);
+
+        AABB moved = box;
+        float moveY = -speed;
+        for (AABB collider : colliders) {
+            moveY = moved.collideAlongAxis(collider, Axis.Y, moveY);
+        }
+        moved = moved.translate(0, moveY, 0);
+        float moveX = speed;
+        for (AABB collider : colliders) {
+            moveX = moved.collideAlongAxis(collider, Axis.X, moveX);
+        }
+        moved = moved.translate(moveX, 0, 0);
+        float moveZ = speed;
+        for (AABB collider : colliders) {
+            moveZ = moved.collideAlongAxis(collider, Axis.Z, moveZ);
+        }
+
+        return moveX + moveY + moveZ;
+    }
+
+    @Benchmark
+    public float colliderBuffer() {
+        float minX = box.minX, minY = box.minY, minZ = box.minZ;
+        float maxX = box.maxX, maxY = box.maxY, maxZ = box.maxZ;
+        map.getCollidersWithin(minX, minY - speed, minZ, maxX + speed, maxY, maxZ + speed, buffer);
+
+        float moveY = buffer.collideAlongAxis(minX, minY, minZ, maxX, maxY, maxZ, Axis.Y, -speed);
+        minY += moveY;
+        maxY += moveY;
+        float moveX = buffer.collideAlongAxis(minX, minY, minZ, maxX, maxY, maxZ, Axis.X, speed);
+        minX += moveX;
+        maxX += moveX;
+        float moveZ = buffer.collideAlongAxis(minX, minY, minZ, maxX, maxY, maxZ, Axis.Z, speed);
+
+        return moveX + moveY + moveZ;
+    }
+}
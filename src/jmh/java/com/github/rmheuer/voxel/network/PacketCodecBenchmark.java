@@ -0,0 +1,103 @@
+package com.github.rmheuer.voxel.network;
+
+import com.github.rmheuer.voxel.network.packet.*;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many packets per second go through {@link PacketMapping},
+ * {@link PacketEncoder} and {@link PacketDecoder}. The packets are a mix of
+ * the ones the server sends most often while players are moving and
+ * building.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketCodecBenchmark {
+    private static final int PACKET_COUNT = 64;
+
+    private PacketMapping<ClientPacket, ServerPacket> serverMapping;
+    private ServerPacket[] packets;
+    private ByteBuf encoded;
+    private EmbeddedChannel decodeChannel;
+
+    @Setup
+    public void setup() throws IOException {
+        serverMapping = PacketRegistry.getServerMapping();
+
+        packets = new ServerPacket[PACKET_COUNT];
+        for (int i = 0; i < PACKET_COUNT; i++) {
+            byte playerId = (byte) (i % 8);
+            switch (i % 4) {
+                case 0:
+                    packets[i] = new ServerRelativeMoveAndLookPacket(playerId, 0.1f, 0, -0.2f, i * 5.0f, 10.0f);
+                    break;
+                case 1:
+                    packets[i] = new ServerRelativeMovePacket(playerId, 0.25f, -0.5f, 0);
+                    break;
+                case 2:
+                    packets[i] = new BidiPlayerPositionPacket(playerId, 64.5f + i, 33.0f, 64.5f - i, i * 5.0f, 0);
+                    break;
+                default:
+                    packets[i] = new ServerSetBlockPacket((short) i, (short) 32, (short) (i * 2), (byte) (i % 50));
+                    break;
+            }
+        }
+
+        encoded = Unpooled.buffer();
+        for (ServerPacket packet : packets) {
+            ByteBuf buf = PacketEncoder.encodeToBuffer(serverMapping, packet);
+            encoded.writeBytes(buf);
+            buf.release();
+        }
+
+        decodeChannel = new EmbeddedChannel(new PacketDecoder<>(PacketRegistry.getClientMapping()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        encoded.release();
+        decodeChannel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKET_COUNT)
+    public void encode(Blackhole bh) throws IOException {
+        for (ServerPacket packet : packets) {
+            ByteBuf buf = PacketEncoder.encodeToBuffer(serverMapping, packet);
+            bh.consume(buf.readableBytes());
+            buf.release();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKET_COUNT)
+    public void decode(Blackhole bh) {
+        decodeChannel.writeInbound(encoded.retainedDuplicate());
+
+        Object packet;
+        while ((packet = decodeChannel.readInbound()) != null) {
+            bh.consume(packet);
+        }
+    }
+}
@@ -17,6 +17,7 @@ public final class Block {
     private boolean interactable;
     private boolean replaceable;
     private boolean lightBlocking;
+    private boolean placeable;
     private Liquid liquid;
     private float particleGravityScale;
     private BlockBehavior placementBehavior;
@@ -38,6 +39,7 @@ public final class Block {
         interactable = true;
         replaceable = false;
         lightBlocking = true;
+        placeable = true;
         liquid = null;
         particleGravityScale = 1;
 
@@ -113,6 +115,17 @@ public final class Block {
         return this;
     }
 
+    /**
+     * Sets whether players are allowed to place this block.
+     *
+     * @param placeable whether the block can be placed by the player
+     * @return this
+     */
+    public Block setPlaceable(boolean placeable) {
+        this.placeable = placeable;
+        return this;
+    }
+
     /**
      * Sets the liquid associated with this block.
      *
@@ -177,6 +190,10 @@ public final class Block {
         return lightBlocking;
     }
 
+    public boolean isPlaceable() {
+        return placeable;
+    }
+
     public Liquid getLiquid() {
         return liquid;
     }
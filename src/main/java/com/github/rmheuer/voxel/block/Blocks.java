@@ -51,7 +51,8 @@ public final class Blocks {
                 .setLightBlocking(false)
                 .setSolid(false)
                 .setReplaceable(true)
-                .setInteractable(false));
+                .setInteractable(false)
+                .setPlaceable(false));
 
         register(new Block(ID_STONE, CubeShape.all(new AtlasSprite(1, 0))));
         register(new Block(ID_GRASS, new CubeShape(new AtlasSprite(0, 0), new AtlasSprite(3, 0), new AtlasSprite(2, 0))));
@@ -61,27 +62,32 @@ public final class Blocks {
         register(new Block(ID_SAPLING, new CrossShape(new AtlasSprite(15, 0)))
                 .setLightBlocking(false)
                 .setSolid(false));
-        register(new Block(ID_BEDROCK, CubeShape.all(new AtlasSprite(1, 1))));
+        register(new Block(ID_BEDROCK, CubeShape.all(new AtlasSprite(1, 1)))
+                .setPlaceable(false));
         register(new Block(ID_FLOWING_WATER, new LiquidShape(new AtlasSprite(14, 0), false, true))
                 .setLiquid(Liquid.WATER)
                 .setSolid(false)
                 .setReplaceable(true)
-                .setInteractable(false));
+                .setInteractable(false)
+                .setPlaceable(false));
         register(new Block(ID_STILL_WATER, new LiquidShape(new AtlasSprite(14, 0), false, true))
                 .setLiquid(Liquid.WATER)
                 .setSolid(false)
                 .setReplaceable(true)
-                .setInteractable(false));
+                .setInteractable(false)
+                .setPlaceable(false));
         register(new Block(ID_FLOWING_LAVA, new LiquidShape(new AtlasSprite(14, 1), true, false))
                 .setLiquid(Liquid.LAVA)
                 .setSolid(false)
                 .setReplaceable(true)
-                .setInteractable(false));
+                .setInteractable(false)
+                .setPlaceable(false));
         register(new Block(ID_STILL_LAVA, new LiquidShape(new AtlasSprite(14, 1), true, false))
                 .setLiquid(Liquid.LAVA)
                 .setSolid(false)
                 .setReplaceable(true)
-                .setInteractable(false));
+                .setInteractable(false)
+                .setPlaceable(false));
 
         BlockBehavior fallBehavior = (level, x, y, z, id) -> {
             int fallToY;
@@ -160,6 +166,18 @@ public final class Blocks {
         BLOCKS[block.getId()] = block;
     }
 
+    /**
+     * Gets whether a block ID refers to a registered block. IDs received from
+     * the network should be checked with this before calling
+     * {@link #getBlock}.
+     *
+     * @param id block ID to check
+     * @return whether the block exists
+     */
+    public static boolean isValidId(byte id) {
+        return id >= 0 && id < BLOCK_COUNT && BLOCKS[id] != null;
+    }
+
     /**
      * Gets the block properties for the specified block ID.
      *
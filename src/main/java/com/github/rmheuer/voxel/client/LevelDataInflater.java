@@ -0,0 +1,222 @@
+package com.github.rmheuer.voxel.client;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses level data as each chunk is received, so the compressed data
+ * doesn't need to be kept until the level is finalized. Supports both the
+ * classic format (GZIP with a length prefix) and the FastMap format (raw
+ * DEFLATE, with the length given in level init).
+ */
+public final class LevelDataInflater {
+    /**
+     * Largest level volume the client accepts. The protocol allows sizes up
+     * to 32767 on each axis, but the block data has to fit in one array.
+     */
+    public static final int MAX_VOLUME = Integer.MAX_VALUE - 8;
+
+    // The level data array starts at this size and grows as data is
+    // decompressed, so a bogus length doesn't allocate memory up front
+    private static final int INITIAL_CAPACITY = 65536;
+
+    // GZIP header flags
+    private static final int FLAG_HEADER_CRC = 2;
+    private static final int FLAG_EXTRA = 4;
+    private static final int FLAG_NAME = 8;
+    private static final int FLAG_COMMENT = 16;
+
+    private final Inflater inflater;
+
+    // Received data before the end of the GZIP header, or null if there is
+    // no header left to read
+    private ByteBuf headerData;
+
+    // Length prefix, only used in the classic format
+    private final byte[] lengthBytes;
+    private int lengthBytesRead;
+
+    // Decompressed level data, or null if the length isn't known yet
+    private byte[] levelData;
+    private int levelDataPos;
+    private int levelDataLength;
+
+    private LevelDataInflater(boolean classic, int volume) {
+        inflater = new Inflater(true);
+        lengthBytes = new byte[4];
+
+        if (classic) {
+            headerData = Unpooled.buffer();
+            lengthBytesRead = 0;
+            levelData = null;
+            levelDataLength = -1;
+        } else {
+            headerData = null;
+            lengthBytesRead = lengthBytes.length;
+            levelData = new byte[Math.min(volume, INITIAL_CAPACITY)];
+            levelDataLength = volume;
+        }
+        levelDataPos = 0;
+    }
+
+    /**
+     * Creates an inflater for level data in the classic format.
+     *
+     * @return new inflater
+     */
+    public static LevelDataInflater classic() {
+        return new LevelDataInflater(true, 0);
+    }
+
+    /**
+     * Creates an inflater for level data in the FastMap format.
+     *
+     * @param volume number of blocks in the level
+     * @return new inflater
+     * @throws IOException if the volume is not a valid level size
+     */
+    public static LevelDataInflater fastMap(int volume) throws IOException {
+        checkLength(volume);
+        return new LevelDataInflater(false, volume);
+    }
+
+    private static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_VOLUME)
+            throw new IOException("Invalid level data length: " + length);
+    }
+
+    /**
+     * Decompresses a chunk of received level data.
+     *
+     * @param chunk compressed data. This is not retained after returning
+     * @throws IOException if the data is invalid
+     */
+    public void addChunk(ByteBuf chunk) throws IOException {
+        if (headerData != null) {
+            headerData.writeBytes(chunk, chunk.readerIndex(), chunk.readableBytes());
+
+            int headerLen = getGZIPHeaderLength(headerData);
+            if (headerLen < 0)
+                return;
+
+            // Rest of the received data is the start of the DEFLATE stream
+            ByteBuf received = headerData;
+            headerData = null;
+            try {
+                inflate(received.nioBuffer(headerLen, received.writerIndex() - headerLen));
+            } finally {
+                received.release();
+            }
+            return;
+        }
+
+        inflate(chunk.nioBuffer());
+    }
+
+    private void inflate(ByteBuffer input) throws IOException {
+        inflater.setInput(input);
+        try {
+            while (!inflater.needsInput() && !inflater.finished()) {
+                if (lengthBytesRead < lengthBytes.length) {
+                    lengthBytesRead += inflater.inflate(lengthBytes, lengthBytesRead, lengthBytes.length - lengthBytesRead);
+                    if (lengthBytesRead == lengthBytes.length) {
+                        int length = ((lengthBytes[0] & 0xFF) << 24)
+                                | ((lengthBytes[1] & 0xFF) << 16)
+                                | ((lengthBytes[2] & 0xFF) << 8)
+                                | (lengthBytes[3] & 0xFF);
+                        checkLength(length);
+                        levelData = new byte[Math.min(length, INITIAL_CAPACITY)];
+                        levelDataLength = length;
+                    }
+                } else {
+                    if (levelDataPos == levelData.length) {
+                        // Anything past the expected length is ignored
+                        if (levelDataPos == levelDataLength)
+                            break;
+
+                        int newSize = (int) Math.min((long) levelData.length * 2, levelDataLength);
+                        levelData = Arrays.copyOf(levelData, newSize);
+                    }
+                    levelDataPos += inflater.inflate(levelData, levelDataPos, levelData.length - levelDataPos);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed level data", e);
+        }
+    }
+
+    // Gets the length of the GZIP header, or -1 if not all of it has been
+    // received yet
+    private static int getGZIPHeaderLength(ByteBuf buf) throws IOException {
+        int end = buf.writerIndex();
+        if (end < 10)
+            return -1;
+
+        if (buf.getUnsignedByte(0) != 0x1F || buf.getUnsignedByte(1) != 0x8B)
+            throw new IOException("Level data is not in GZIP format");
+        if (buf.getUnsignedByte(2) != 8)
+            throw new IOException("Unsupported level data compression method");
+
+        int flags = buf.getUnsignedByte(3);
+        int pos = 10;
+        if ((flags & FLAG_EXTRA) != 0) {
+            if (pos + 2 > end)
+                return -1;
+            pos += 2 + buf.getUnsignedShortLE(pos);
+        }
+        if ((flags & FLAG_NAME) != 0) {
+            pos = skipZeroTerminated(buf, pos, end);
+            if (pos < 0)
+                return -1;
+        }
+        if ((flags & FLAG_COMMENT) != 0) {
+            pos = skipZeroTerminated(buf, pos, end);
+            if (pos < 0)
+                return -1;
+        }
+        if ((flags & FLAG_HEADER_CRC) != 0)
+            pos += 2;
+
+        return pos <= end ? pos : -1;
+    }
+
+    private static int skipZeroTerminated(ByteBuf buf, int pos, int end) {
+        if (pos >= end)
+            return -1;
+        int zero = buf.indexOf(pos, end, (byte) 0);
+        return zero < 0 ? -1 : zero + 1;
+    }
+
+    /**
+     * Gets the decompressed level data once all chunks have been added.
+     *
+     * @param expectedLength number of blocks the level should have
+     * @return decompressed level data
+     * @throws IOException if the data is incomplete or the wrong size
+     */
+    public byte[] finish(int expectedLength) throws IOException {
+        if (levelData == null || levelDataLength != expectedLength)
+            throw new IOException("Incorrect level data array size");
+        if (levelDataPos != levelDataLength)
+            throw new IOException("Level data ended early");
+
+        return levelData;
+    }
+
+    /**
+     * Releases the native resources used by the inflater.
+     */
+    public void close() {
+        inflater.end();
+        if (headerData != null) {
+            headerData.release();
+            headerData = null;
+        }
+    }
+}
@@ -4,10 +4,9 @@ import com.github.rmheuer.azalea.math.AABB;
 import com.github.rmheuer.azalea.math.Axis;
 import com.github.rmheuer.voxel.block.Liquid;
 import com.github.rmheuer.voxel.level.BlockMap;
+import com.github.rmheuer.voxel.level.ColliderBuffer;
 import org.joml.Vector3f;
 
-import java.util.List;
-
 public final class LocalPlayer extends Player {
     private static final float JUMP_VELOCITY = 0.42f;
     private static final float TRACTION_ON_GROUND = 0.1f;
@@ -21,6 +20,7 @@ public final class LocalPlayer extends Player {
     private static final float BB_HEIGHT = 1.8f;
 
     private final Vector3f prevPosition;
+    private final ColliderBuffer colliders;
     private boolean onGround;
 
     private boolean turned;
@@ -28,6 +28,7 @@ public final class LocalPlayer extends Player {
     public LocalPlayer(float x, float y, float z, float pitch, float yaw) {
         super(x, y, z, pitch, yaw);
         prevPosition = new Vector3f(x, y, z);
+        colliders = new ColliderBuffer();
         turned = false;
 
         onGround = false;
@@ -72,56 +73,53 @@ public final class LocalPlayer extends Player {
             velocity.add(new Vector3f(inputRight, 0, -inputForward).rotateY(yaw));
         }
 
-        // Move with collision
-        AABB extended = box.expandTowards(velocity.x, velocity.y, velocity.z);
-        List<AABB> colliders = map.getCollidersWithin(extended);
-
-        float moveY = velocity.y;
-        for (AABB collider : colliders) {
-            moveY = box.collideAlongAxis(collider, Axis.Y, moveY);
-        }
-        box = box.translate(0, moveY, 0);
-        float moveX = velocity.x;
-        for (AABB collider : colliders) {
-            moveX = box.collideAlongAxis(collider, Axis.X, moveX);
-        }
-        box = box.translate(moveX, 0, 0);
-        float moveZ = velocity.z;
-        for (AABB collider : colliders) {
-            moveZ = box.collideAlongAxis(collider, Axis.Z, moveZ);
-        }
+        // Move with collision. The box is kept as separate coordinates and
+        // moved in place, so this doesn't allocate every tick
+        float minX = box.minX, minY = box.minY, minZ = box.minZ;
+        float maxX = box.maxX, maxY = box.maxY, maxZ = box.maxZ;
+
+        // Region the box can move through
+        float extMinX = Math.min(minX, minX + velocity.x);
+        float extMinY = Math.min(minY, minY + velocity.y);
+        float extMinZ = Math.min(minZ, minZ + velocity.z);
+        float extMaxX = Math.max(maxX, maxX + velocity.x);
+        float extMaxY = Math.max(maxY, maxY + velocity.y);
+        float extMaxZ = Math.max(maxZ, maxZ + velocity.z);
+        map.getCollidersWithin(extMinX, extMinY, extMinZ, extMaxX, extMaxY, extMaxZ, colliders);
+
+        float moveY = colliders.collideAlongAxis(minX, minY, minZ, maxX, maxY, maxZ, Axis.Y, velocity.y);
+        minY += moveY;
+        maxY += moveY;
+        float moveX = colliders.collideAlongAxis(minX, minY, minZ, maxX, maxY, maxZ, Axis.X, velocity.x);
+        minX += moveX;
+        maxX += moveX;
+        float moveZ = colliders.collideAlongAxis(minX, minY, minZ, maxX, maxY, maxZ, Axis.Z, velocity.z);
 
         boolean horizontalCollision = moveX != velocity.x || moveZ != velocity.z;
         if (onGround && horizontalCollision) {
             // Handle stepping up onto a slab
 
-            AABB stepUp = getBoundingBox().translate(0, 0.6f, 0);
-            AABB stepExtended = extended.expandTowards(0, 0.6f, 0).expandTowards(0, -0.6f, 0);
-            colliders = map.getCollidersWithin(stepExtended);
-
-            float stepMoveX = velocity.x;
-            for (AABB collider : colliders) {
-                stepMoveX = stepUp.collideAlongAxis(collider, Axis.X, stepMoveX);
-            }
-            stepUp = stepUp.translate(stepMoveX, 0, 0);
-            float stepMoveZ = velocity.z;
-            for (AABB collider : colliders) {
-                stepMoveZ = stepUp.collideAlongAxis(collider, Axis.Z, stepMoveZ);
-            }
-            stepUp = stepUp.translate(0, 0, stepMoveZ);
+            minX = box.minX;
+            minY = box.minY + 0.6f;
+            minZ = box.minZ;
+            maxX = box.maxX;
+            maxY = box.maxY + 0.6f;
+            maxZ = box.maxZ;
+            map.getCollidersWithin(extMinX, extMinY - 0.6f, extMinZ, extMaxX, extMaxY + 0.6f, extMaxZ, colliders);
+
+            float stepMoveX = colliders.collideAlongAxis(minX, minY, minZ, maxX, maxY, maxZ, Axis.X, velocity.x);
+            minX += stepMoveX;
+            maxX += stepMoveX;
+            float stepMoveZ = colliders.collideAlongAxis(minX, minY, minZ, maxX, maxY, maxZ, Axis.Z, velocity.z);
+            minZ += stepMoveZ;
+            maxZ += stepMoveZ;
 
             // Move down back onto floor
-            float floorMoveY = -0.6f;
-            for (AABB collider : colliders) {
-                floorMoveY = stepUp.collideAlongAxis(collider, Axis.Y, floorMoveY);
-            }
-            stepUp = stepUp.translate(0, floorMoveY, 0);
+            float floorMoveY = colliders.collideAlongAxis(minX, minY, minZ, maxX, maxY, maxZ, Axis.Y, -0.6f);
+            minY += floorMoveY;
+            maxY += floorMoveY;
 
-            float stepMoveY = velocity.y;
-            for (AABB collider : colliders) {
-                stepMoveY = stepUp.collideAlongAxis(collider, Axis.Y, stepMoveY);
-            }
-            stepUp = stepUp.translate(0, stepMoveY, 0);
+            float stepMoveY = colliders.collideAlongAxis(minX, minY, minZ, maxX, maxY, maxZ, Axis.Y, velocity.y);
 
             if (stepMoveX * stepMoveX + stepMoveZ * stepMoveZ > moveX * moveX + moveZ * moveZ) {
                 moveX = stepMoveX;
@@ -153,8 +151,12 @@ public final class LocalPlayer extends Player {
 
             // Allow jumping out at edge of liquid
             if (horizontalCollision) {
-                AABB jumpOut = getBoundingBox().translate(velocity.x, velocity.y + 0.6f - moveY, velocity.z);
-                if (map.isFree(jumpOut))
+                float jumpY = velocity.y + 0.6f - moveY;
+                boolean free = map.isFree(
+                        position.x - BB_SIZE / 2 + velocity.x, position.y + jumpY, position.z - BB_SIZE / 2 + velocity.z,
+                        position.x + BB_SIZE / 2 + velocity.x, position.y + BB_HEIGHT + jumpY, position.z + BB_SIZE / 2 + velocity.z,
+                        colliders);
+                if (free)
                     velocity.y = 0.3f;
             }
         } else {
@@ -3,19 +3,17 @@ package com.github.rmheuer.voxel.client;
 import com.github.rmheuer.azalea.render.Colors;
 import com.github.rmheuer.voxel.client.ui.DownloadingTerrainUI;
 import com.github.rmheuer.voxel.level.BlockMap;
+import com.github.rmheuer.voxel.level.MapSection;
+import com.github.rmheuer.voxel.network.PacketRegistry;
 import com.github.rmheuer.voxel.network.ServerPacketListener;
 import com.github.rmheuer.voxel.network.cpe.packet.*;
 import com.github.rmheuer.voxel.network.packet.*;
 import com.github.rmheuer.voxel.network.cpe.CPEExtensions;
 import org.joml.Vector3i;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.GZIPInputStream;
 
 public final class NetworkHandler implements ServerPacketListener {
     public static final float POSITION_Y_OFFSET = 1.6f;
@@ -29,7 +27,8 @@ public final class NetworkHandler implements ServerPacketListener {
     private CPEExtensions extensions;
 
     private DownloadingTerrainUI downloadingTerrainUI;
-    private final List<byte[]> receivedLevelChunks;
+    // Decompresses level data as it is received
+    private LevelDataInflater levelInflater;
 
     private final AtomicInteger timeoutTimer;
 
@@ -40,8 +39,6 @@ public final class NetworkHandler implements ServerPacketListener {
         receivedServerExtensions = new CPEExtensions.ExtensionSet();
         extensions = CPEExtensions.NONE;
 
-        receivedLevelChunks = new ArrayList<>();
-
         conn.setPacketListener(this);
         conn.sendPacket(new ClientPlayerIdPacket((short) 7, username, "", CPEExtensions.HANDSHAKE_MAGIC_VALUE));
 
@@ -92,6 +89,8 @@ public final class NetworkHandler implements ServerPacketListener {
         }
 
         this.extensions = new CPEExtensions(receivedServerExtensions);
+        if (this.extensions.fastMap)
+            conn.setInPacketSize(PacketRegistry.LEVEL_INIT_ID, PacketRegistry.FAST_MAP_LEVEL_INIT_SIZE);
         System.out.println("CPE negotiation finished");
     }
 
@@ -109,10 +108,22 @@ public final class NetworkHandler implements ServerPacketListener {
     }
 
     @Override
-    public void onLevelInit() {
+    public void onLevelInit(ServerLevelInitPacket packet) {
         resetTimeout();
         downloadingTerrainUI = new DownloadingTerrainUI();
-        receivedLevelChunks.clear();
+
+        if (levelInflater != null) {
+            levelInflater.close();
+            levelInflater = null;
+        }
+        try {
+            levelInflater = packet.isFastMap()
+                    ? LevelDataInflater.fastMap(packet.getVolume())
+                    : LevelDataInflater.classic();
+        } catch (IOException e) {
+            throw new RuntimeException("Invalid level init", e);
+        }
+
         client.runOnMainThread(() -> {
             client.setUI(downloadingTerrainUI);
             client.clearLevel();
@@ -122,7 +133,11 @@ public final class NetworkHandler implements ServerPacketListener {
     @Override
     public void onLevelDataChunk(ServerLevelDataChunkPacket packet) {
         resetTimeout();
-        receivedLevelChunks.add(packet.getChunkData());
+        try {
+            levelInflater.addChunk(packet.getChunkData());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to decompress level data", e);
+        }
 
         // Local copy so it doesn't get replaced with null in onLevelFinalize()
         final DownloadingTerrainUI ui = downloadingTerrainUI;
@@ -133,38 +148,38 @@ public final class NetworkHandler implements ServerPacketListener {
     public void onLevelFinalize(ServerLevelFinalizePacket packet) {
         resetTimeout();
 
-        int totalSize = 0;
-        for (byte[] chunk : receivedLevelChunks) {
-            totalSize += chunk.length;
-        }
-
-        byte[] gzipLevelData = new byte[totalSize];
-        int offset = 0;
-        for (byte[] chunk : receivedLevelChunks) {
-            System.arraycopy(chunk, 0, gzipLevelData, offset, chunk.length);
-            offset += chunk.length;
-        }
-
-        int expectedLen = packet.getSizeX() * packet.getSizeY() * packet.getSizeZ();
+        int sizeX = packet.getSizeX();
+        int sizeY = packet.getSizeY();
+        int sizeZ = packet.getSizeZ();
+        if (sizeX % MapSection.SIZE != 0 || sizeY % MapSection.SIZE != 0 || sizeZ % MapSection.SIZE != 0)
+            throw new RuntimeException("Level dimensions are not divisible by section size");
+        long volume = (long) sizeX * sizeY * sizeZ;
+        if (sizeX <= 0 || sizeY <= 0 || sizeZ <= 0 || volume > LevelDataInflater.MAX_VOLUME)
+            throw new RuntimeException("Invalid level dimensions: " + sizeX + "x" + sizeY + "x" + sizeZ);
 
         byte[] levelData;
-        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(gzipLevelData))) {
-            DataInputStream in = new DataInputStream(gzip);
-            int length = in.readInt();
-            if (length != expectedLen)
-                throw new RuntimeException("Incorrect level data array size");
-
-            levelData = new byte[length];
-            in.readFully(levelData);
+        try {
+            levelData = levelInflater.finish((int) volume);
         } catch (IOException e) {
             throw new RuntimeException("Failed to decompress level data", e);
+        } finally {
+            levelInflater.close();
+            levelInflater = null;
         }
 
+        // Unpack here so the main thread doesn't stall, and so the packed
+        // data can be freed before the level is shown
+        BlockMap blockMap = new BlockMap(
+                sizeX / MapSection.SIZE,
+                sizeY / MapSection.SIZE,
+                sizeZ / MapSection.SIZE,
+                levelData
+        );
+
         downloadingTerrainUI = null;
-        receivedLevelChunks.clear();
 
         client.runOnMainThread(() -> {
-            client.initLevel(packet.getSizeX(), packet.getSizeY(), packet.getSizeZ(), levelData);
+            client.initLevel(blockMap);
             client.setUI(null);
         });
     }
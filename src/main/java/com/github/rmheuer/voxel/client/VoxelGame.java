@@ -293,10 +293,13 @@ public final class VoxelGame extends BaseGame {
         localPlayer = new LocalPlayer(x, y, z, pitch, yaw);
     }
 
-    public void initLevel(int sizeX, int sizeY, int sizeZ, byte[] blockData) {
+    public void initLevel(BlockMap blockMap) {
+        int sizeX = blockMap.getBlocksX();
+        int sizeY = blockMap.getBlocksY();
+        int sizeZ = blockMap.getBlocksZ();
         System.out.println("Level: " + sizeX + ", " + sizeY + ", " + sizeZ);
 
-        level = new ClientLevel(sizeX, sizeY, sizeZ, blockData);
+        level = new ClientLevel(blockMap);
 
         environmentRenderer.updateLevelSize(sizeX, sizeY, sizeZ);
     }
@@ -537,7 +540,10 @@ public final class VoxelGame extends BaseGame {
         } else if (event.getButton() == MouseButton.MIDDLE) {
             if (raycastResult != null) {
                 byte clicked = level.getBlockMap().getBlockId(raycastResult.blockPos.x, raycastResult.blockPos.y, raycastResult.blockPos.z);
-                pickBlock(Blocks.getBlock(clicked).getItemId());
+                byte item = Blocks.getBlock(clicked).getItemId();
+                // Blocks like bedrock can be seen but not placed
+                if (Blocks.getBlock(item).isPlaceable())
+                    pickBlock(item);
             }
         }
     }
@@ -15,6 +15,7 @@ import com.github.rmheuer.azalea.render.utils.SharedIndexBuffer;
 import com.github.rmheuer.azalea.utils.SafeCloseable;
 import com.github.rmheuer.voxel.block.Block;
 import com.github.rmheuer.voxel.level.BlockMap;
+import com.github.rmheuer.voxel.level.ColliderBuffer;
 import com.github.rmheuer.voxel.level.LightMap;
 import com.github.rmheuer.voxel.client.render.AtlasSprite;
 import com.github.rmheuer.voxel.client.render.FogInfo;
@@ -69,29 +70,20 @@ public final class ParticleSystem implements SafeCloseable {
 
         }
 
-        public void tick(BlockMap map) {
+        public void tick(BlockMap map, ColliderBuffer colliders) {
             prevPosition.set(position);
 
             velocity.y -= GRAVITY * gravityScale;
 
             AABB box = AABB.fromCenterSize(position.x, position.y, position.z, 0.2f, 0.2f, 0.2f);
             AABB extended = box.expandTowards(velocity.x, velocity.y, velocity.z);
-            List<AABB> colliders = map.getCollidersWithin(extended);
+            map.getCollidersWithin(extended, colliders);
 
-            float moveY = velocity.y;
-            for (AABB collider : colliders) {
-                moveY = box.collideAlongAxis(collider, Axis.Y, moveY);
-            }
+            float moveY = colliders.collideAlongAxis(box, Axis.Y, velocity.y);
             box = box.translate(0, moveY, 0);
-            float moveX = velocity.x;
-            for (AABB collider : colliders) {
-                moveX = box.collideAlongAxis(collider, Axis.X, moveX);
-            }
+            float moveX = colliders.collideAlongAxis(box, Axis.X, velocity.x);
             box = box.translate(moveX, 0, 0);
-            float moveZ = velocity.z;
-            for (AABB collider : colliders) {
-                moveZ = box.collideAlongAxis(collider, Axis.Z, moveZ);
-            }
+            float moveZ = colliders.collideAlongAxis(box, Axis.Z, velocity.z);
 
             if (moveX != velocity.x)
                 velocity.x = 0;
@@ -128,6 +120,7 @@ public final class ParticleSystem implements SafeCloseable {
     private final SharedIndexBuffer indexBuffer;
 
     private final List<Particle> particles;
+    private final ColliderBuffer colliders;
     private final Random random;
 
     /**
@@ -151,6 +144,7 @@ public final class ParticleSystem implements SafeCloseable {
         indexBuffer = new SharedIndexBuffer(renderer, PrimitiveType.TRIANGLES, 4, 0, 1, 2, 0, 2, 3);
 
         particles = new ArrayList<>();
+        colliders = new ColliderBuffer();
         random = new Random();
     }
 
@@ -217,7 +211,7 @@ public final class ParticleSystem implements SafeCloseable {
             if (particle.shouldRemove()) {
                 iter.remove();
             } else {
-                particle.tick(map);
+                particle.tick(map, colliders);
             }
         }
     }
@@ -5,18 +5,39 @@ import com.github.rmheuer.voxel.block.Block;
 import com.github.rmheuer.voxel.block.Blocks;
 import com.github.rmheuer.voxel.block.Liquid;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
 import java.util.function.Predicate;
+import java.util.stream.IntStream;
 
 /**
  * Stores the grid of blocks in the level
  */
 public final class BlockMap {
+    // Maps with fewer sections than this are packed and unpacked on one
+    // thread, since splitting up the work would cost more than it saves
+    private static final int PARALLEL_THRESHOLD = 128;
+
     private final int sectionsX, sectionsY, sectionsZ;
     private final int blocksX, blocksY, blocksZ;
     private final MapSection[] sections;
+    // Whether each section has been modified since the flags were last taken
+    private final boolean[] dirtySections;
 
+    /**
+     * Creates a new map filled with air. Sections are only allocated once
+     * blocks are placed into them.
+     *
+     * @param sectionsX number of sections along the X axis
+     * @param sectionsY number of sections along the Y axis
+     * @param sectionsZ number of sections along the Z axis
+     */
     public BlockMap(int sectionsX, int sectionsY, int sectionsZ) {
         this.sectionsX = sectionsX;
         this.sectionsY = sectionsY;
@@ -27,12 +48,12 @@ public final class BlockMap {
 
         int sectionCount = sectionsX * sectionsY * sectionsZ;
         sections = new MapSection[sectionCount];
-        for (int i = 0; i < sectionCount; i++) {
-            sections[i] = new MapSection();
-        }
+        Arrays.fill(sections, MapSection.uniform(Blocks.ID_AIR));
+        dirtySections = new boolean[sectionCount];
     }
 
-    // Makes a full copy of the map
+    // Makes a full copy of the map. Shared sections are not copied, since
+    // they are never modified
     public BlockMap(BlockMap o) {
         sectionsX = o.sectionsX;
         sectionsY = o.sectionsY;
@@ -44,8 +65,22 @@ public final class BlockMap {
         int sectionCount = sectionsX * sectionsY * sectionsZ;
         sections = new MapSection[sectionCount];
         for (int i = 0; i < sectionCount; i++) {
-            sections[i] = new MapSection(o.sections[i]);
+            MapSection section = o.sections[i];
+            sections[i] = section.isShared() ? section : new MapSection(section);
         }
+        dirtySections = o.dirtySections.clone();
+    }
+
+    // Creates a map sharing the sections of another map
+    private BlockMap(BlockMap o, MapSection[] sections) {
+        sectionsX = o.sectionsX;
+        sectionsY = o.sectionsY;
+        sectionsZ = o.sectionsZ;
+        blocksX = o.blocksX;
+        blocksY = o.blocksY;
+        blocksZ = o.blocksZ;
+        this.sections = sections;
+        dirtySections = new boolean[sections.length];
     }
 
     /**
@@ -67,55 +102,142 @@ public final class BlockMap {
         int sectionCount = sectionsX * sectionsY * sectionsZ;
 
         sections = new MapSection[sectionCount];
+        dirtySections = new boolean[sectionCount];
 
         long before = System.nanoTime();
-        for (int sectionY = 0; sectionY < sectionsY; sectionY++) {
-            for (int sectionZ = 0; sectionZ < sectionsZ; sectionZ++) {
-                for (int sectionX = 0; sectionX < sectionsX; sectionX++) {
-                    int sectionBase = sectionX * 16 + sectionZ * 16 * blocksX + sectionY * 16 * blocksX * blocksZ;
+        // Each section only reads its own part of the data, so they can be
+        // unpacked in parallel
+        forEachSection((index) -> sections[index] = unpackSection(index, blockData));
+        long after = System.nanoTime();
 
-                    byte[] sectionData = new byte[MapSection.SIZE_CUBED];
+        System.out.println("Level data unpacking took " + ((after - before) / 1_000_000.0) + " ms");
+    }
 
-                    for (int blockY = 0; blockY < MapSection.SIZE; blockY++) {
-                        for (int blockZ = 0; blockZ < MapSection.SIZE; blockZ++) {
-                            int sectionOffset = blockZ * blocksX + blockY * blocksX * blocksZ;
-                            int blockBase = blockZ * 16 + blockY * 256;
+    /**
+     * Creates a new map, getting the sections from a function. Sections may
+     * be loaded in parallel, so the function must be safe to call from
+     * multiple threads at once.
+     *
+     * @param sectionsX number of sections along the X axis
+     * @param sectionsY number of sections along the Y axis
+     * @param sectionsZ number of sections along the Z axis
+     * @param sectionLoader gets the section at an index. The index is the
+     *                      same as in {@link #takeDirtySections()}
+     */
+    public BlockMap(int sectionsX, int sectionsY, int sectionsZ, IntFunction<MapSection> sectionLoader) {
+        this.sectionsX = sectionsX;
+        this.sectionsY = sectionsY;
+        this.sectionsZ = sectionsZ;
+        blocksX = sectionsX * MapSection.SIZE;
+        blocksY = sectionsY * MapSection.SIZE;
+        blocksZ = sectionsZ * MapSection.SIZE;
 
-                            System.arraycopy(blockData, sectionBase + sectionOffset, sectionData, blockBase, 16);
-                        }
-                    }
+        int sectionCount = sectionsX * sectionsY * sectionsZ;
 
-                    sections[sectionIndex(sectionX, sectionY, sectionZ)] = new MapSection(sectionData);
-                }
+        sections = new MapSection[sectionCount];
+        dirtySections = new boolean[sectionCount];
+        forEachSection((index) -> sections[index] = sectionLoader.apply(index));
+    }
+
+    public byte[] packBlockData() {
+        byte[] packed = new byte[blocksX * blocksY * blocksZ];
+        forEachSection((index) -> packSection(index, packed));
+        return packed;
+    }
+
+    // Runs an action for the index of every section, in parallel for large
+    // maps. The action must only access data belonging to that section
+    private void forEachSection(IntConsumer action) {
+        IntStream indices = IntStream.range(0, sections.length);
+        if (sections.length >= PARALLEL_THRESHOLD)
+            indices = indices.parallel();
+        indices.forEach(action);
+    }
+
+    // Gets the index in packed block data of the first block in a section
+    private int packedSectionBase(int index) {
+        int sectionX = index % sectionsX;
+        int sectionZ = (index / sectionsX) % sectionsZ;
+        int sectionY = index / sectionsX / sectionsZ;
+        return sectionX * MapSection.SIZE
+                + sectionZ * MapSection.SIZE * blocksX
+                + sectionY * MapSection.SIZE * blocksX * blocksZ;
+    }
+
+    private MapSection unpackSection(int index, byte[] blockData) {
+        int sectionBase = packedSectionBase(index);
+        byte[] sectionData = new byte[MapSection.SIZE_CUBED];
+
+        for (int blockY = 0; blockY < MapSection.SIZE; blockY++) {
+            for (int blockZ = 0; blockZ < MapSection.SIZE; blockZ++) {
+                int sectionOffset = blockZ * blocksX + blockY * blocksX * blocksZ;
+                int blockBase = blockZ * 16 + blockY * 256;
+
+                System.arraycopy(blockData, sectionBase + sectionOffset, sectionData, blockBase, 16);
             }
         }
-        long after = System.nanoTime();
 
-        System.out.println("Level data unpacking took " + ((after - before) / 1_000_000.0) + " ms");
+        return createSection(sectionData);
     }
 
-    public byte[] packBlockData() {
-        byte[] packed = new byte[blocksX * blocksY * blocksZ];
+    // Uniform sections are replaced with the shared instance to save memory
+    private static MapSection createSection(byte[] sectionData) {
+        MapSection section = new MapSection(sectionData);
+        if (section.isUniform())
+            section = MapSection.uniform(section.getBlockId(0, 0, 0));
+        return section;
+    }
 
-        for (int sectionY = 0; sectionY < sectionsY; sectionY++) {
-            for (int sectionZ = 0; sectionZ < sectionsZ; sectionZ++) {
-                for (int sectionX = 0; sectionX < sectionsX; sectionX++) {
-                    byte[] sectionData = sections[sectionIndex(sectionX, sectionY, sectionZ)].getBlockData();
-                    int sectionBase = sectionX * 16 + sectionZ * 16 * blocksX + sectionY * 16 * blocksX * blocksZ;
+    private void packSection(int index, byte[] packed) {
+        MapSection section = sections[index];
+        int sectionBase = packedSectionBase(index);
 
-                    for (int blockY = 0; blockY < MapSection.SIZE; blockY++) {
-                        for (int blockZ = 0; blockZ < MapSection.SIZE; blockZ++) {
-                            int sectionOffset = blockZ * blocksX + blockY * blocksX * blocksZ;
-                            int blockBase = blockZ * 16 + blockY * 256;
+        for (int blockY = 0; blockY < MapSection.SIZE; blockY++) {
+            for (int blockZ = 0; blockZ < MapSection.SIZE; blockZ++) {
+                int sectionOffset = blockZ * blocksX + blockY * blocksX * blocksZ;
+                section.unpackRow(blockY, blockZ, packed, sectionBase + sectionOffset);
+            }
+        }
+    }
 
-                            System.arraycopy(sectionData, blockBase, packed, sectionBase + sectionOffset, 16);
-                        }
-                    }
+    /**
+     * Writes the block data to a stream in the same order as
+     * {@link #packBlockData()}. Only one row of blocks is unpacked at a time,
+     * so this does not need to copy the whole map into memory.
+     *
+     * @param out stream to write to
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeBlockData(OutputStream out) throws IOException {
+        byte[] row = new byte[blocksX];
+        for (int y = 0; y < blocksY; y++) {
+            int sectionY = y / MapSection.SIZE;
+            int blockY = y % MapSection.SIZE;
+            for (int z = 0; z < blocksZ; z++) {
+                int sectionZ = z / MapSection.SIZE;
+                int blockZ = z % MapSection.SIZE;
+                for (int sectionX = 0; sectionX < sectionsX; sectionX++) {
+                    MapSection section = sections[sectionIndex(sectionX, sectionY, sectionZ)];
+                    section.unpackRow(blockY, blockZ, row, sectionX * MapSection.SIZE);
                 }
+                out.write(row);
             }
         }
+    }
 
-        return packed;
+    /**
+     * Creates a copy-on-write snapshot of this map. All sections are shared
+     * between this map and the snapshot, and whichever map modifies a section
+     * first will copy it. This makes taking a snapshot much cheaper than a
+     * full copy, since no block data needs to be copied.
+     *
+     * @return snapshot of the current map contents
+     */
+    public BlockMap snapshot() {
+        for (MapSection section : sections) {
+            section.markShared();
+        }
+        return new BlockMap(this, sections.clone());
     }
 
     // Gets the index of the section within the sections array
@@ -123,13 +245,48 @@ public final class BlockMap {
         return sectionX + sectionZ * sectionsX + sectionY * sectionsX * sectionsZ;
     }
 
+    /**
+     * Gets which sections have been modified since the last time this was
+     * called, and clears the modified flags. Sections are identified by
+     * their index, which is {@code x + z * sectionsX + y * sectionsX *
+     * sectionsZ}. Snapshots start with no sections modified.
+     *
+     * @return indices of modified sections
+     */
+    public BitSet takeDirtySections() {
+        BitSet dirty = new BitSet(dirtySections.length);
+        for (int i = 0; i < dirtySections.length; i++) {
+            if (dirtySections[i]) {
+                dirty.set(i);
+                dirtySections[i] = false;
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * Replaces the contents of a section. This does not mark the section as
+     * modified.
+     *
+     * @param sectionX x coordinate of the section
+     * @param sectionY y coordinate of the section
+     * @param sectionZ z coordinate of the section
+     * @param blockData block IDs in the same order as
+     *                  {@link MapSection#unpackBlockData}. The array may be
+     *                  used directly, so it should not be modified afterward
+     */
+    public void setSectionData(int sectionX, int sectionY, int sectionZ, byte[] blockData) {
+        sections[sectionIndex(sectionX, sectionY, sectionZ)] = createSection(blockData);
+    }
+
     /**
      * Gets one section of the map at the specified position.
      *
      * @param sectionX x coordinate of the section
      * @param sectionY y coordinate of the section
      * @param sectionZ z coordinate of the section
-     * @return section at those coordinates
+     * @return section at those coordinates. This may be shared, so it should
+     *         not be modified directly
      */
     public MapSection getSection(int sectionX, int sectionY, int sectionZ) {
         return sections[sectionIndex(sectionX, sectionY, sectionZ)];
@@ -178,12 +335,26 @@ public final class BlockMap {
      * @return ID of block that was there previously
      */
     public byte setBlockId(int blockX, int blockY, int blockZ, byte newBlockId) {
-        MapSection section = getSectionContainingBlock(blockX, blockY, blockZ);
+        int index = sectionIndex(blockX / MapSection.SIZE, blockY / MapSection.SIZE, blockZ / MapSection.SIZE);
+        MapSection section = sections[index];
         int relX = blockX % MapSection.SIZE;
         int relY = blockY % MapSection.SIZE;
         int relZ = blockZ % MapSection.SIZE;
 
-        return section.setBlockId(relX, relY, relZ, newBlockId);
+        if (section.isShared()) {
+            byte prevBlockId = section.getBlockId(relX, relY, relZ);
+            if (prevBlockId == newBlockId)
+                return prevBlockId;
+
+            // Make a private copy to modify
+            section = new MapSection(section);
+            sections[index] = section;
+        }
+
+        byte prevBlockId = section.setBlockId(relX, relY, relZ, newBlockId);
+        if (prevBlockId != newBlockId)
+            dirtySections[index] = true;
+        return prevBlockId;
     }
 
     /**
@@ -209,14 +380,51 @@ public final class BlockMap {
      * @return collision boxes within the region
      */
     public List<AABB> getCollidersWithin(AABB region) {
-        List<AABB> colliders = new ArrayList<>();
+        ColliderBuffer buffer = new ColliderBuffer();
+        getCollidersWithin(region, buffer);
+
+        List<AABB> colliders = new ArrayList<>(buffer.size());
+        for (int i = 0; i < buffer.size(); i++) {
+            colliders.add(buffer.get(i));
+        }
+        return colliders;
+    }
+
+    /**
+     * Gets the collision boxes of the blocks within a region, and stores them
+     * into a buffer. The buffer is cleared first. This does not allocate, so
+     * it can be used for physics every tick.
+     *
+     * @param region region to check
+     * @param out buffer to store collision boxes into
+     */
+    public void getCollidersWithin(AABB region, ColliderBuffer out) {
+        getCollidersWithin(region.minX, region.minY, region.minZ, region.maxX, region.maxY, region.maxZ, out);
+    }
 
-        int minX = (int) Math.floor(region.minX);
-        int minY = (int) Math.floor(region.minY);
-        int minZ = (int) Math.floor(region.minZ);
-        int maxX = (int) Math.ceil(region.maxX);
-        int maxY = (int) Math.min(Math.ceil(region.maxY), blocksY);
-        int maxZ = (int) Math.ceil(region.maxZ);
+    /**
+     * Gets the collision boxes of the blocks within a region given by its
+     * bounds, and stores them into a buffer. The buffer is cleared first.
+     *
+     * @param regionMinX minimum X coordinate of the region
+     * @param regionMinY minimum Y coordinate of the region
+     * @param regionMinZ minimum Z coordinate of the region
+     * @param regionMaxX maximum X coordinate of the region
+     * @param regionMaxY maximum Y coordinate of the region
+     * @param regionMaxZ maximum Z coordinate of the region
+     * @param out buffer to store collision boxes into
+     */
+    public void getCollidersWithin(float regionMinX, float regionMinY, float regionMinZ,
+                                   float regionMaxX, float regionMaxY, float regionMaxZ,
+                                   ColliderBuffer out) {
+        out.clear();
+
+        int minX = (int) Math.floor(regionMinX);
+        int minY = (int) Math.floor(regionMinY);
+        int minZ = (int) Math.floor(regionMinZ);
+        int maxX = (int) Math.ceil(regionMaxX);
+        int maxY = (int) Math.min(Math.ceil(regionMaxY), blocksY);
+        int maxZ = (int) Math.ceil(regionMaxZ);
 
         for (int y = minY; y < maxY; y++) {
             boolean yInBounds = y >= 0;
@@ -229,27 +437,32 @@ public final class BlockMap {
                         Block block = Blocks.getBlock(getBlockId(x, y, z));
 
                         if (block.isSolid()) {
-                            colliders.add(block.getBoundingBox().translate(x, y, z));
+                            AABB bb = block.getBoundingBox();
+                            out.add(bb.minX + x, bb.minY + y, bb.minZ + z, bb.maxX + x, bb.maxY + y, bb.maxZ + z);
                         }
                     } else {
                         // Make horizontal border of world solid
-                        colliders.add(new AABB(x, y, z, x + 1, y + 1, z + 1));
+                        out.add(x, y, z, x + 1, y + 1, z + 1);
                     }
                 }
             }
         }
-
-        return colliders;
     }
 
     // Checks if a condition is true for any block within a region
     private boolean anyInRegionMatches(AABB region, Predicate<Block> condition) {
-        int minX = (int) Math.max(Math.floor(region.minX), 0);
-        int minY = (int) Math.max(Math.floor(region.minY), 0);
-        int minZ = (int) Math.max(Math.floor(region.minZ), 0);
-        int maxX = (int) Math.min(Math.ceil(region.maxX), blocksX);
-        int maxY = (int) Math.min(Math.ceil(region.maxY), blocksY);
-        int maxZ = (int) Math.min(Math.ceil(region.maxZ), blocksZ);
+        return anyInRegionMatches(region.minX, region.minY, region.minZ, region.maxX, region.maxY, region.maxZ, condition);
+    }
+
+    private boolean anyInRegionMatches(float regionMinX, float regionMinY, float regionMinZ,
+                                       float regionMaxX, float regionMaxY, float regionMaxZ,
+                                       Predicate<Block> condition) {
+        int minX = (int) Math.max(Math.floor(regionMinX), 0);
+        int minY = (int) Math.max(Math.floor(regionMinY), 0);
+        int minZ = (int) Math.max(Math.floor(regionMinZ), 0);
+        int maxX = (int) Math.min(Math.ceil(regionMaxX), blocksX);
+        int maxY = (int) Math.min(Math.ceil(regionMaxY), blocksY);
+        int maxZ = (int) Math.min(Math.ceil(regionMaxZ), blocksZ);
 
         for (int y = minY; y < maxY; y++) {
             for (int z = minZ; z < maxZ; z++) {
@@ -290,15 +503,36 @@ public final class BlockMap {
      * contain any liquid.
      *
      * @param region region to check
+     * @param colliders buffer to use for the collision boxes. Its previous
+     *                  contents are replaced
      * @return whether the region is free
      */
-    public boolean isFree(AABB region) {
-        for (AABB collider : getCollidersWithin(region)) {
-            if (collider.intersects(region))
-                return false;
-        }
+    public boolean isFree(AABB region, ColliderBuffer colliders) {
+        return isFree(region.minX, region.minY, region.minZ, region.maxX, region.maxY, region.maxZ, colliders);
+    }
 
-        return !containsAnyLiquid(region);
+    /**
+     * Gets whether the region given by its bounds intersects no collision
+     * boxes and does not contain any liquid.
+     *
+     * @param minX minimum X coordinate of the region
+     * @param minY minimum Y coordinate of the region
+     * @param minZ minimum Z coordinate of the region
+     * @param maxX maximum X coordinate of the region
+     * @param maxY maximum Y coordinate of the region
+     * @param maxZ maximum Z coordinate of the region
+     * @param colliders buffer to use for the collision boxes. Its previous
+     *                  contents are replaced
+     * @return whether the region is free
+     */
+    public boolean isFree(float minX, float minY, float minZ,
+                          float maxX, float maxY, float maxZ,
+                          ColliderBuffer colliders) {
+        getCollidersWithin(minX, minY, minZ, maxX, maxY, maxZ, colliders);
+        if (colliders.intersectsAny(minX, minY, minZ, maxX, maxY, maxZ))
+            return false;
+
+        return !anyInRegionMatches(minX, minY, minZ, maxX, maxY, maxZ, (block) -> block.getLiquid() != null);
     }
 
     public int getSectionsX() {
@@ -0,0 +1,189 @@
+package com.github.rmheuer.voxel.level;
+
+import com.github.rmheuer.azalea.math.AABB;
+import com.github.rmheuer.azalea.math.Axis;
+
+import java.util.Arrays;
+
+/**
+ * Reusable list of collision boxes, stored as a flat array of floats. This
+ * allows collision queries to run every tick without allocating a new object
+ * for every block.
+ */
+public final class ColliderBuffer {
+    // Each box is stored as minX, minY, minZ, maxX, maxY, maxZ
+    private static final int FLOATS_PER_BOX = 6;
+    private static final int INITIAL_CAPACITY = 32;
+
+    private float[] boxes;
+    private int count;
+
+    public ColliderBuffer() {
+        boxes = new float[INITIAL_CAPACITY * FLOATS_PER_BOX];
+        count = 0;
+    }
+
+    /**
+     * Removes all boxes from the buffer.
+     */
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * Adds a box to the buffer.
+     *
+     * @param minX minimum X coordinate
+     * @param minY minimum Y coordinate
+     * @param minZ minimum Z coordinate
+     * @param maxX maximum X coordinate
+     * @param maxY maximum Y coordinate
+     * @param maxZ maximum Z coordinate
+     */
+    public void add(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        int base = count * FLOATS_PER_BOX;
+        if (base == boxes.length)
+            boxes = Arrays.copyOf(boxes, boxes.length * 2);
+
+        boxes[base] = minX;
+        boxes[base + 1] = minY;
+        boxes[base + 2] = minZ;
+        boxes[base + 3] = maxX;
+        boxes[base + 4] = maxY;
+        boxes[base + 5] = maxZ;
+        count++;
+    }
+
+    /**
+     * Gets the number of boxes in the buffer.
+     *
+     * @return number of boxes
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Gets a box from the buffer as an {@link AABB}. This allocates, so
+     * should not be used in performance sensitive code.
+     *
+     * @param index index of the box
+     * @return the box
+     */
+    public AABB get(int index) {
+        int base = index * FLOATS_PER_BOX;
+        return new AABB(
+                boxes[base], boxes[base + 1], boxes[base + 2],
+                boxes[base + 3], boxes[base + 4], boxes[base + 5]
+        );
+    }
+
+    /**
+     * Limits a movement of a box along one axis so that it does not move into
+     * any of the boxes in the buffer. This is equivalent to calling
+     * {@link AABB#collideAlongAxis} for every box in the buffer.
+     *
+     * @param box box that is moving
+     * @param axis axis the box is moving along
+     * @param move distance to move along the axis
+     * @return distance the box can move without colliding
+     */
+    public float collideAlongAxis(AABB box, Axis axis, float move) {
+        return collideAlongAxis(box.minX, box.minY, box.minZ, box.maxX, box.maxY, box.maxZ, axis, move);
+    }
+
+    /**
+     * Limits a movement of a box given by its bounds along one axis so that
+     * it does not move into any of the boxes in the buffer. This allows the
+     * moving box to be kept in local variables instead of allocating a new
+     * {@link AABB} for every step.
+     *
+     * @param minX minimum X coordinate of the moving box
+     * @param minY minimum Y coordinate of the moving box
+     * @param minZ minimum Z coordinate of the moving box
+     * @param maxX maximum X coordinate of the moving box
+     * @param maxY maximum Y coordinate of the moving box
+     * @param maxZ maximum Z coordinate of the moving box
+     * @param axis axis the box is moving along
+     * @param move distance to move along the axis
+     * @return distance the box can move without colliding
+     */
+    public float collideAlongAxis(float minX, float minY, float minZ,
+                                  float maxX, float maxY, float maxZ,
+                                  Axis axis, float move) {
+        // Axis of movement is A, other axes are B and C
+        int a, b, c;
+        float minA, maxA, minB, maxB, minC, maxC;
+        switch (axis) {
+            case X:
+                a = 0; b = 1; c = 2;
+                minA = minX; maxA = maxX;
+                minB = minY; maxB = maxY;
+                minC = minZ; maxC = maxZ;
+                break;
+            case Y:
+                a = 1; b = 0; c = 2;
+                minA = minY; maxA = maxY;
+                minB = minX; maxB = maxX;
+                minC = minZ; maxC = maxZ;
+                break;
+            default:
+                a = 2; b = 0; c = 1;
+                minA = minZ; maxA = maxZ;
+                minB = minX; maxB = maxX;
+                minC = minY; maxC = maxY;
+                break;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int base = i * FLOATS_PER_BOX;
+
+            // Boxes that don't overlap on the other axes can't be hit
+            if (boxes[base + b + 3] <= minB || boxes[base + b] >= maxB)
+                continue;
+            if (boxes[base + c + 3] <= minC || boxes[base + c] >= maxC)
+                continue;
+
+            if (move > 0 && boxes[base + a] >= maxA) {
+                move = Math.min(move, boxes[base + a] - maxA);
+            } else if (move < 0 && boxes[base + a + 3] <= minA) {
+                move = Math.max(move, boxes[base + a + 3] - minA);
+            }
+        }
+
+        return move;
+    }
+
+    /**
+     * Gets whether any of the boxes in the buffer intersect a box.
+     *
+     * @param box box to check
+     * @return whether any box intersects
+     */
+    public boolean intersectsAny(AABB box) {
+        return intersectsAny(box.minX, box.minY, box.minZ, box.maxX, box.maxY, box.maxZ);
+    }
+
+    /**
+     * Gets whether any of the boxes in the buffer intersect a box given by
+     * its bounds.
+     *
+     * @param minX minimum X coordinate of the box
+     * @param minY minimum Y coordinate of the box
+     * @param minZ minimum Z coordinate of the box
+     * @param maxX maximum X coordinate of the box
+     * @param maxY maximum Y coordinate of the box
+     * @param maxZ maximum Z coordinate of the box
+     * @return whether any box intersects
+     */
+    public boolean intersectsAny(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        for (int i = 0; i < count; i++) {
+            int base = i * FLOATS_PER_BOX;
+            if (boxes[base] < maxX && boxes[base + 3] > minX
+                    && boxes[base + 1] < maxY && boxes[base + 4] > minY
+                    && boxes[base + 2] < maxZ && boxes[base + 5] > minZ)
+                return true;
+        }
+        return false;
+    }
+}
@@ -5,7 +5,10 @@ import com.github.rmheuer.voxel.block.Blocks;
 import java.util.Arrays;
 
 /**
- * A cube section of a {@link BlockMap}.
+ * A cube section of a {@link BlockMap}. Block IDs are stored as indices into
+ * a small palette of the IDs used within the section, so sections containing
+ * only a few different blocks take much less memory. If the section contains
+ * too many different blocks, it switches to storing the raw IDs.
  */
 public final class MapSection {
     /** Size of the section along one axis. */
@@ -14,23 +17,83 @@ public final class MapSection {
     public static final int SIZE_SQUARED = SIZE * SIZE;
     public static final int SIZE_CUBED = SIZE * SIZE * SIZE;
 
-    private final byte[] blocks;
+    // Largest palette before switching to raw block IDs
+    private static final int MAX_PALETTE_SIZE = 16;
+    // Bits per block when storing raw block IDs
+    private static final int RAW_BITS = 8;
+
+    // Shared sections filled with each block ID
+    private static final MapSection[] UNIFORM_SECTIONS = new MapSection[256];
+    static {
+        for (int i = 0; i < UNIFORM_SECTIONS.length; i++) {
+            MapSection section = new MapSection((byte) i);
+            section.shared = true;
+            UNIFORM_SECTIONS[i] = section;
+        }
+    }
+
+    /**
+     * Gets a shared section filled entirely with one block. The returned
+     * section is shared, so it can not be modified.
+     *
+     * @param blockId ID of the block to fill with
+     * @return shared uniform section
+     */
+    public static MapSection uniform(byte blockId) {
+        return UNIFORM_SECTIONS[blockId & 0xFF];
+    }
+
+    private final byte[] palette;
+    private int paletteSize;
+
+    // Either 0 (whole section is palette[0]), 1, 2, 4, or RAW_BITS
+    private int bitsPerBlock;
+    // Packed palette indices, used when bitsPerBlock is 1, 2, or 4
+    private long[] indices;
+    // Raw block IDs, used when bitsPerBlock is RAW_BITS
+    private byte[] blocks;
+
     private short nonAirCount;
 
+    // Shared sections may be referenced by multiple maps, so must not change
+    private boolean shared;
+
     /**
      * Creates a new section filled with air.
      */
     public MapSection() {
-        blocks = new byte[SIZE_CUBED];
-        Arrays.fill(blocks, Blocks.ID_AIR);
+        this(Blocks.ID_AIR);
+    }
 
-        nonAirCount = 0;
+    /**
+     * Creates a new section filled with one block.
+     *
+     * @param blockId ID of the block to fill with
+     */
+    public MapSection(byte blockId) {
+        palette = new byte[MAX_PALETTE_SIZE];
+        palette[0] = blockId;
+        paletteSize = 1;
+        bitsPerBlock = 0;
+
+        nonAirCount = blockId == Blocks.ID_AIR ? 0 : (short) SIZE_CUBED;
+        shared = false;
     }
 
+    /**
+     * Creates a new section from unpacked block data. If the data needs to be
+     * stored raw, the array is used directly, so it should not be modified
+     * afterward.
+     *
+     * @param blockData block IDs, in the same order as {@link #unpackBlockData}
+     */
     public MapSection(byte[] blockData) {
         if (blockData.length != SIZE_CUBED)
             throw new IllegalArgumentException("Wrong block data size");
-        blocks = blockData;
+
+        palette = new byte[MAX_PALETTE_SIZE];
+        paletteSize = 0;
+        shared = false;
 
         nonAirCount = 0;
         for (byte b : blockData) {
@@ -38,15 +101,106 @@ public final class MapSection {
                 nonAirCount++;
             }
         }
+
+        // Find which IDs are present
+        boolean[] present = new boolean[256];
+        for (byte b : blockData) {
+            if (!present[b & 0xFF]) {
+                present[b & 0xFF] = true;
+                if (paletteSize == MAX_PALETTE_SIZE) {
+                    bitsPerBlock = RAW_BITS;
+                    blocks = blockData;
+                    return;
+                }
+                palette[paletteSize++] = b;
+            }
+        }
+
+        bitsPerBlock = bitsForPaletteSize(paletteSize);
+        if (bitsPerBlock > 0) {
+            indices = new long[indicesLength(bitsPerBlock)];
+            for (int i = 0; i < SIZE_CUBED; i++) {
+                writeIndex(i, paletteIndexOf(blockData[i]));
+            }
+        }
     }
 
+    /**
+     * Creates a modifiable copy of another section.
+     *
+     * @param o section to copy
+     */
     public MapSection(MapSection o) {
-        blocks = o.blocks.clone();
+        palette = o.palette.clone();
+        paletteSize = o.paletteSize;
+        bitsPerBlock = o.bitsPerBlock;
+        indices = o.indices != null ? o.indices.clone() : null;
+        blocks = o.blocks != null ? o.blocks.clone() : null;
         nonAirCount = o.nonAirCount;
+        shared = false;
+    }
+
+    // Gets the number of bits needed to index a palette of the given size
+    private static int bitsForPaletteSize(int size) {
+        if (size <= 1)
+            return 0;
+        if (size <= 2)
+            return 1;
+        if (size <= 4)
+            return 2;
+        return 4;
+    }
+
+    // Gets the number of longs needed to store all indices at a bit width
+    private static int indicesLength(int bits) {
+        return SIZE_CUBED * bits / Long.SIZE;
+    }
+
+    /**
+     * Copies the block IDs of this section into an array. The IDs are ordered
+     * by X, then Z, then Y.
+     *
+     * @param dest array to copy into, must be at least {@link #SIZE_CUBED} long
+     */
+    public void unpackBlockData(byte[] dest) {
+        switch (bitsPerBlock) {
+            case 0:
+                Arrays.fill(dest, 0, SIZE_CUBED, palette[0]);
+                break;
+            case RAW_BITS:
+                System.arraycopy(blocks, 0, dest, 0, SIZE_CUBED);
+                break;
+            default:
+                for (int i = 0; i < SIZE_CUBED; i++) {
+                    dest[i] = palette[readIndex(i)];
+                }
+                break;
+        }
     }
 
-    public byte[] getBlockData() {
-        return blocks;
+    /**
+     * Copies one row of blocks along the X axis into an array.
+     *
+     * @param y y coordinate of the row
+     * @param z z coordinate of the row
+     * @param dest array to copy into
+     * @param destOffset index in the array to copy the first block to
+     */
+    public void unpackRow(int y, int z, byte[] dest, int destOffset) {
+        int rowStart = blockIndex(0, y, z);
+        switch (bitsPerBlock) {
+            case 0:
+                Arrays.fill(dest, destOffset, destOffset + SIZE, palette[0]);
+                break;
+            case RAW_BITS:
+                System.arraycopy(blocks, rowStart, dest, destOffset, SIZE);
+                break;
+            default:
+                for (int x = 0; x < SIZE; x++) {
+                    dest[destOffset + x] = palette[readIndex(rowStart + x)];
+                }
+                break;
+        }
     }
 
     // Gets the index of a block within the blocks array
@@ -54,6 +208,69 @@ public final class MapSection {
         return x + z * SIZE + y * SIZE_SQUARED;
     }
 
+    // Reads a packed palette index. Indices never cross a long boundary since
+    // bitsPerBlock always divides 64
+    private int readIndex(int blockIndex) {
+        int bit = blockIndex * bitsPerBlock;
+        int mask = (1 << bitsPerBlock) - 1;
+        return (int) (indices[bit >>> 6] >>> (bit & 63)) & mask;
+    }
+
+    private void writeIndex(int blockIndex, int paletteIndex) {
+        int bit = blockIndex * bitsPerBlock;
+        int shift = bit & 63;
+        long mask = (long) ((1 << bitsPerBlock) - 1) << shift;
+        indices[bit >>> 6] = (indices[bit >>> 6] & ~mask) | ((long) paletteIndex << shift);
+    }
+
+    private int paletteIndexOf(byte blockId) {
+        for (int i = 0; i < paletteSize; i++) {
+            if (palette[i] == blockId)
+                return i;
+        }
+        return -1;
+    }
+
+    private byte getBlockIdAtIndex(int blockIndex) {
+        switch (bitsPerBlock) {
+            case 0:
+                return palette[0];
+            case RAW_BITS:
+                return blocks[blockIndex];
+            default:
+                return palette[readIndex(blockIndex)];
+        }
+    }
+
+    // Re-packs the indices with a larger number of bits per block
+    private void resizeIndices(int newBits) {
+        int oldBits = bitsPerBlock;
+        long[] oldIndices = indices;
+
+        bitsPerBlock = newBits;
+        indices = new long[indicesLength(newBits)];
+
+        // All old indices are 0 if the section was uniform
+        if (oldBits == 0)
+            return;
+
+        int oldMask = (1 << oldBits) - 1;
+        for (int i = 0; i < SIZE_CUBED; i++) {
+            int bit = i * oldBits;
+            int paletteIndex = (int) (oldIndices[bit >>> 6] >>> (bit & 63)) & oldMask;
+            writeIndex(i, paletteIndex);
+        }
+    }
+
+    private void convertToRaw() {
+        byte[] raw = new byte[SIZE_CUBED];
+        unpackBlockData(raw);
+
+        blocks = raw;
+        indices = null;
+        bitsPerBlock = RAW_BITS;
+    }
+
     /**
      * Gets the ID of the block at the specified position.
      *
@@ -63,7 +280,7 @@ public final class MapSection {
      * @return ID of block at the position
      */
     public byte getBlockId(int x, int y, int z) {
-        return blocks[blockIndex(x, y, z)];
+        return getBlockIdAtIndex(blockIndex(x, y, z));
     }
 
     /**
@@ -76,19 +293,41 @@ public final class MapSection {
      * @return ID of block that was there previously
      */
     public byte setBlockId(int x, int y, int z, byte newBlockId) {
+        if (shared)
+            throw new IllegalStateException("Shared section can not be modified");
+
         int index = blockIndex(x, y, z);
 
-        byte oldBlockId = blocks[index];
-        blocks[index] = newBlockId;
+        byte oldBlockId = getBlockIdAtIndex(index);
+        if (newBlockId == oldBlockId)
+            return oldBlockId;
 
-        if (newBlockId != oldBlockId) {
-            if (newBlockId == Blocks.ID_AIR) {
-                nonAirCount--;
+        if (bitsPerBlock == RAW_BITS) {
+            blocks[index] = newBlockId;
+        } else {
+            int paletteIndex = paletteIndexOf(newBlockId);
+            if (paletteIndex < 0 && paletteSize == MAX_PALETTE_SIZE) {
+                convertToRaw();
+                blocks[index] = newBlockId;
             } else {
-                nonAirCount++;
+                if (paletteIndex < 0) {
+                    paletteIndex = paletteSize;
+                    palette[paletteSize++] = newBlockId;
+
+                    int neededBits = bitsForPaletteSize(paletteSize);
+                    if (neededBits > bitsPerBlock)
+                        resizeIndices(neededBits);
+                }
+                writeIndex(index, paletteIndex);
             }
         }
 
+        if (newBlockId == Blocks.ID_AIR) {
+            nonAirCount--;
+        } else if (oldBlockId == Blocks.ID_AIR) {
+            nonAirCount++;
+        }
+
         return oldBlockId;
     }
 
@@ -100,4 +339,29 @@ public final class MapSection {
     public boolean isEmpty() {
         return nonAirCount == 0;
     }
+
+    /**
+     * Gets whether every block in this section is the same.
+     *
+     * @return whether the section is uniform
+     */
+    public boolean isUniform() {
+        return bitsPerBlock == 0;
+    }
+
+    /**
+     * Gets whether this section is shared. Shared sections can not be
+     * modified, and must be copied using {@link #MapSection(MapSection)}
+     * first.
+     *
+     * @return whether the section is shared
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
+    // Marks this section as shared so that it is copied before modification
+    void markShared() {
+        shared = true;
+    }
 }
@@ -1,16 +1,39 @@
 package com.github.rmheuer.voxel.network;
 
 import com.github.rmheuer.voxel.network.packet.Packet;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.concurrent.RejectedExecutionException;
 
 public abstract class Connection<I extends Packet, O extends Packet> extends ChannelInboundHandlerAdapter {
+    /** When packets sent through the connection are flushed to the network */
+    public enum FlushMode {
+        /** Every packet is flushed as soon as it is sent */
+        IMMEDIATE,
+        /**
+         * Packets are flushed by {@link #flush()}, or after the connection
+         * finishes reading a group of incoming packets
+         */
+        BATCHED
+    }
+
     private final Channel channel;
+    private volatile FlushMode flushMode;
+    // Whether batched packets have been written since the last flush. Only
+    // accessed from the I/O thread, so a flush is always ordered after the
+    // writes it covers
+    private boolean flushPending;
 
     public Connection(Channel channel) {
         this.channel = channel;
+        flushMode = FlushMode.IMMEDIATE;
+        flushPending = false;
     }
 
     protected abstract void dispatchPacket(I packet);
@@ -20,11 +43,153 @@ public abstract class Connection<I extends Packet, O extends Packet> extends Cha
         @SuppressWarnings("unchecked")
         I packet = (I) msg;
 
-        dispatchPacket(packet);
+        try {
+            dispatchPacket(packet);
+        } finally {
+            // Some packets hold buffers, which need to be released once the
+            // packet is handled
+            ReferenceCountUtil.release(packet);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        // Send any replies to the packets that were just read
+        flush();
+        ctx.fireChannelReadComplete();
+    }
+
+    private void write(Object msg) {
+        if (flushMode == FlushMode.IMMEDIATE) {
+            channel.writeAndFlush(msg).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+            return;
+        }
+
+        EventLoop eventLoop = channel.eventLoop();
+        if (eventLoop.inEventLoop()) {
+            writeBatched(msg);
+        } else {
+            try {
+                eventLoop.execute(() -> writeBatched(msg));
+            } catch (RejectedExecutionException e) {
+                // Event loop is shut down, so the packet can't be sent
+                ReferenceCountUtil.release(msg);
+            }
+        }
+    }
+
+    private void writeBatched(Object msg) {
+        channel.write(msg).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+        flushPending = true;
     }
 
     public void sendPacket(O packet) {
-        channel.writeAndFlush(packet).addListener(ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE);
+        write(packet);
+    }
+
+    /**
+     * Sends a packet that was already encoded using
+     * {@link PacketEncoder#encodeToBuffer}. This takes ownership of the
+     * buffer. This should only be used if {@link #hasPacketEncoder()} is true.
+     *
+     * @param encoded encoded packet data
+     */
+    public void sendEncodedPacket(ByteBuf encoded) {
+        write(encoded);
+    }
+
+    /**
+     * Flushes all packets that have been sent but not yet flushed. This only
+     * does anything if the flush mode is {@link FlushMode#BATCHED}.
+     */
+    public void flush() {
+        EventLoop eventLoop = channel.eventLoop();
+        if (eventLoop.inEventLoop()) {
+            flushNow();
+        } else {
+            try {
+                // Runs after any writes this thread already queued
+                eventLoop.execute(this::flushNow);
+            } catch (RejectedExecutionException e) {
+                // Event loop is shut down, nothing can be flushed
+            }
+        }
+    }
+
+    private void flushNow() {
+        if (flushPending) {
+            flushPending = false;
+            channel.flush();
+        }
+    }
+
+    /**
+     * Sets when packets sent through this connection are flushed.
+     *
+     * @param flushMode new flush mode
+     */
+    public void setFlushMode(FlushMode flushMode) {
+        this.flushMode = flushMode;
+        if (flushMode == FlushMode.IMMEDIATE)
+            flush();
+    }
+
+    /**
+     * Gets whether packets sent through this connection are encoded into
+     * bytes. Local connections transfer the packet objects directly instead.
+     *
+     * @return whether the connection has a packet encoder
+     */
+    public boolean hasPacketEncoder() {
+        return channel.pipeline().get(PacketEncoder.class) != null;
+    }
+
+    /**
+     * Changes the size of received packets with an ID, for extensions that
+     * add data to existing packets. This does nothing for connections that
+     * don't decode packets from bytes. This should only be called from the
+     * I/O thread, before any packet with the new size is received.
+     *
+     * @param packetId ID of the packet
+     * @param size new size in bytes, not including the ID
+     */
+    public void setInPacketSize(int packetId, int size) {
+        PacketDecoder<?> decoder = channel.pipeline().get(PacketDecoder.class);
+        if (decoder != null)
+            decoder.setPacketSize(packetId, size);
+    }
+
+    /**
+     * Gets whether more packets can be sent without buffering too much data.
+     * If this is false, {@link #onWritable()} is called once it becomes true
+     * again.
+     *
+     * @return whether the connection is writable
+     */
+    public boolean isWritable() {
+        return channel.isWritable();
+    }
+
+    /**
+     * Called on the I/O thread when the connection becomes writable again
+     * after {@link #isWritable()} returned false.
+     */
+    protected void onWritable() {}
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (channel.isWritable())
+            onWritable();
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    /**
+     * Runs an action on the connection's I/O thread.
+     *
+     * @param fn action to run
+     */
+    public void runOnIOThread(Runnable fn) {
+        channel.eventLoop().execute(fn);
     }
 
     public boolean isConnected() {
@@ -32,7 +197,10 @@ public abstract class Connection<I extends Packet, O extends Packet> extends Cha
     }
 
     public void close() {
-        if (channel.isOpen())
+        if (channel.isOpen()) {
+            // Make sure everything sent before closing is actually sent
+            flush();
             channel.close();
+        }
     }
 }
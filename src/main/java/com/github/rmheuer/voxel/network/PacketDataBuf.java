@@ -10,6 +10,12 @@ import java.util.Arrays;
 public final class PacketDataBuf implements PacketDataInput, PacketDataOutput {
     public static final int MAX_STRING_LEN = 64;
 
+    // Strings are padded with spaces to MAX_STRING_LEN
+    private static final byte[] STRING_PADDING = new byte[MAX_STRING_LEN];
+    static {
+        Arrays.fill(STRING_PADDING, (byte) ' ');
+    }
+
     private final ByteBuf buf;
 
     public PacketDataBuf(ByteBuf buf) {
@@ -91,23 +97,26 @@ public final class PacketDataBuf implements PacketDataInput, PacketDataOutput {
 
     @Override
     public String readString() {
-        byte[] data = readBytes(MAX_STRING_LEN);
-        String str = new String(data, StandardCharsets.US_ASCII);
-        return str.stripTrailing();
+        // Find where the trailing whitespace starts, so only the actual
+        // string needs to be decoded
+        int start = buf.readerIndex();
+        int length = MAX_STRING_LEN;
+        while (length > 0 && Character.isWhitespace((char) buf.getUnsignedByte(start + length - 1))) {
+            length--;
+        }
+
+        String str = buf.toString(start, length, StandardCharsets.US_ASCII);
+        buf.skipBytes(MAX_STRING_LEN);
+        return str;
     }
 
     @Override
     public void writeString(String str) throws IOException {
-        byte[] ascii = str.getBytes(StandardCharsets.US_ASCII);
-        if (ascii.length > MAX_STRING_LEN)
+        if (str.length() > MAX_STRING_LEN)
             throw new IOException("String too long to send");
 
-        buf.writeBytes(ascii);
-        if (ascii.length < MAX_STRING_LEN) {
-            byte[] pad = new byte[MAX_STRING_LEN - ascii.length];
-            Arrays.fill(pad, (byte) 0x20);
-            buf.writeBytes(pad);
-        }
+        int written = buf.writeCharSequence(str, StandardCharsets.US_ASCII);
+        buf.writeBytes(STRING_PADDING, 0, MAX_STRING_LEN - written);
     }
 
     @Override
@@ -117,11 +126,21 @@ public final class PacketDataBuf implements PacketDataInput, PacketDataOutput {
         return bytes;
     }
 
+    @Override
+    public ByteBuf readRetainedSlice(int count) {
+        return buf.readRetainedSlice(count);
+    }
+
     @Override
     public void writeBytes(byte[] bytes) {
         buf.writeBytes(bytes);
     }
 
+    @Override
+    public void writeBytes(ByteBuf bytes) {
+        buf.writeBytes(bytes, bytes.readerIndex(), bytes.readableBytes());
+    }
+
     @Override
     public int[] readInts(int count) {
         int[] ints = new int[count];
@@ -143,6 +162,11 @@ public final class PacketDataBuf implements PacketDataInput, PacketDataOutput {
         buf.skipBytes(count);
     }
 
+    @Override
+    public int readableBytes() {
+        return buf.readableBytes();
+    }
+
     @Override
     public void writeZeros(int count) {
         buf.writeZero(count);
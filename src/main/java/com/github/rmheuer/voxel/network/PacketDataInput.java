@@ -1,5 +1,7 @@
 package com.github.rmheuer.voxel.network;
 
+import io.netty.buffer.ByteBuf;
+
 public interface PacketDataInput {
     short readUByte();
 
@@ -20,7 +22,23 @@ public interface PacketDataInput {
     
     byte[] readBytes(int count);
 
+    /**
+     * Reads bytes as a slice of the underlying buffer, without copying them.
+     * The slice is retained, so the caller is responsible for releasing it.
+     *
+     * @param count number of bytes to read
+     * @return retained slice containing the bytes
+     */
+    ByteBuf readRetainedSlice(int count);
+
     int[] readInts(int count);
     
     void skipBytes(int count);
+
+    /**
+     * Gets the number of bytes of the packet that have not been read yet.
+     *
+     * @return number of remaining bytes
+     */
+    int readableBytes();
 }
@@ -1,5 +1,7 @@
 package com.github.rmheuer.voxel.network;
 
+import io.netty.buffer.ByteBuf;
+
 import java.io.IOException;
 
 public interface PacketDataOutput {
@@ -21,6 +23,9 @@ public interface PacketDataOutput {
 
     void writeBytes(byte[] data);
 
+    // Writes the readable bytes of the buffer without changing its reader index
+    void writeBytes(ByteBuf data);
+
     void writeInts(int[] data);
 
     void writeZeros(int count);
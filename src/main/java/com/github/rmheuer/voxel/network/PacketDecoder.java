@@ -3,37 +3,63 @@ package com.github.rmheuer.voxel.network;
 import com.github.rmheuer.voxel.network.packet.Packet;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.handler.codec.ByteToMessageDecoder;
 
 import java.io.IOException;
 import java.util.List;
 
-public final class PacketDecoder<I extends Packet> extends ReplayingDecoder<Void> {
+/**
+ * Decodes received packets. Every packet with the same ID has the same size,
+ * so each packet is only decoded once all of its data has been received.
+ */
+public final class PacketDecoder<I extends Packet> extends ByteToMessageDecoder {
     private final PacketMapping<I, ?> mapping;
-    private I packet;
+    // Copied from the mapping, since extensions can change the sizes for
+    // one connection
+    private final int[] packetSizes;
 
     public PacketDecoder(PacketMapping<I, ?> mapping) {
         this.mapping = mapping;
-        packet = null;
+
+        packetSizes = new int[256];
+        for (int id = 0; id < packetSizes.length; id++) {
+            packetSizes[id] = mapping.getInPacketSize(id);
+        }
+    }
+
+    /**
+     * Changes the size of received packets with an ID. This should only be
+     * called from the channel's I/O thread.
+     *
+     * @param packetId ID of the packet
+     * @param size new size in bytes, not including the ID
+     */
+    public void setPacketSize(int packetId, int size) {
+        packetSizes[packetId] = size;
     }
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf buf, List<Object> out) throws Exception {
-        if (packet == null) {
-            int packetId = buf.readUnsignedByte();
-            packet = mapping.createInPacket(packetId);
-            if (packet == null)
-                throw new IOException("Received invalid packet with id " + packetId);
-            checkpoint();
-        }
+        if (!buf.isReadable())
+            return;
 
-        if (packet != null) {
-            PacketDataInput in = new PacketDataBuf(buf);
-            packet.read(in);
-            checkpoint();
+        int packetId = buf.getUnsignedByte(buf.readerIndex());
+        int size = packetSizes[packetId];
+        if (size < 0)
+            throw new IOException("Received invalid packet with id " + packetId);
 
-            out.add(packet);
-            packet = null;
-        }
+        // Wait until the whole packet is available
+        if (buf.readableBytes() < 1 + size)
+            return;
+
+        buf.skipBytes(1);
+        ByteBuf data = buf.readSlice(size);
+
+        I packet = mapping.createInPacket(packetId);
+        packet.read(new PacketDataBuf(data));
+        if (data.isReadable())
+            throw new IOException("Packet with id " + packetId + " did not read all of its data");
+
+        out.add(packet);
     }
 }
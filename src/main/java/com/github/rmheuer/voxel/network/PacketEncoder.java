@@ -2,9 +2,12 @@ package com.github.rmheuer.voxel.network;
 
 import com.github.rmheuer.voxel.network.packet.Packet;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
 
+import java.io.IOException;
+
 public final class PacketEncoder<O extends Packet> extends MessageToByteEncoder<O> {
     private final PacketMapping<?, O> mapping;
 
@@ -13,12 +16,39 @@ public final class PacketEncoder<O extends Packet> extends MessageToByteEncoder<
         this.mapping = mapping;
     }
 
-    @Override
-    protected void encode(ChannelHandlerContext ctx, O packet, ByteBuf outBuf) throws Exception {
+    /**
+     * Encodes a packet into a new pooled buffer. This can be used to encode a
+     * packet once and send it to multiple channels. The caller is responsible
+     * for releasing the returned buffer.
+     *
+     * @param mapping mapping to get the packet ID from
+     * @param packet packet to encode
+     * @return buffer containing the encoded packet
+     * @throws IOException if the packet fails to encode
+     */
+    public static <O extends Packet> ByteBuf encodeToBuffer(PacketMapping<?, O> mapping, O packet) throws IOException {
+        ByteBuf buf = ByteBufAllocator.DEFAULT.buffer();
+        boolean success = false;
+        try {
+            writePacket(mapping, packet, buf);
+            success = true;
+            return buf;
+        } finally {
+            if (!success)
+                buf.release();
+        }
+    }
+
+    private static <O extends Packet> void writePacket(PacketMapping<?, O> mapping, O packet, ByteBuf outBuf) throws IOException {
         int packetId = mapping.getIdForOutPacket(packet.getClass());
 
         PacketDataOutput out = new PacketDataBuf(outBuf);
         out.writeUByte(packetId);
         packet.write(out);
     }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, O packet, ByteBuf outBuf) throws Exception {
+        writePacket(mapping, packet, outBuf);
+    }
 }
@@ -2,21 +2,50 @@ package com.github.rmheuer.voxel.network;
 
 import com.github.rmheuer.voxel.network.packet.Packet;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.function.Supplier;
 
 public final class PacketMapping<I extends Packet, O extends Packet> {
-    private final Map<Integer, Supplier<? extends I>> inSuppliers;
+    // Packet IDs are one unsigned byte
+    private static final int MAX_PACKET_IDS = 256;
+
+    // Indexed by packet ID
+    private final Supplier<? extends I>[] inSuppliers;
+    private final int[] inSizes;
+
     private final Map<Class<? extends O>, Integer> outPacketIds;
+    // Cached lookups into outPacketIds, so the map is only used once per
+    // class. This means all packets must be registered before any are sent
+    private final ClassValue<Integer> outPacketIdCache;
 
+    @SuppressWarnings("unchecked")
     public PacketMapping() {
-        inSuppliers = new HashMap<>();
+        inSuppliers = new Supplier[MAX_PACKET_IDS];
+        inSizes = new int[MAX_PACKET_IDS];
+        Arrays.fill(inSizes, -1);
+
         outPacketIds = new HashMap<>();
+        outPacketIdCache = new ClassValue<Integer>() {
+            @Override
+            protected Integer computeValue(Class<?> type) {
+                Integer id = outPacketIds.get(type);
+                return id != null ? id : -1;
+            }
+        };
     }
 
-    public void registerIn(int id, Supplier<? extends I> supplier) {
-        inSuppliers.put(id, supplier);
+    /**
+     * Registers a packet that can be received.
+     *
+     * @param id ID of the packet
+     * @param size size of the packet data in bytes, not including the ID
+     * @param supplier creates an instance of the packet to read into
+     */
+    public void registerIn(int id, int size, Supplier<? extends I> supplier) {
+        inSuppliers[id] = supplier;
+        inSizes[id] = size;
     }
 
     public void registerOut(int id, Class<? extends O> packetClass) {
@@ -24,13 +53,27 @@ public final class PacketMapping<I extends Packet, O extends Packet> {
     }
 
     public I createInPacket(int id) {
-        Supplier<? extends I> supplier = inSuppliers.get(id);
+        Supplier<? extends I> supplier = inSuppliers[id];
         if (supplier == null)
             return null;
         return supplier.get();
     }
 
+    /**
+     * Gets the size of the data of a received packet. All packets with the
+     * same ID have the same size.
+     *
+     * @param id ID of the packet
+     * @return size in bytes not including the ID, or -1 if the ID is invalid
+     */
+    public int getInPacketSize(int id) {
+        return inSizes[id];
+    }
+
     public int getIdForOutPacket(Class<?> packetClass) {
-        return outPacketIds.get(packetClass);
+        int id = outPacketIdCache.get(packetClass);
+        if (id < 0)
+            throw new IllegalArgumentException("Packet " + packetClass.getSimpleName() + " is not registered");
+        return id;
     }
 }
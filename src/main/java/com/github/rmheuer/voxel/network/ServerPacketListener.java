@@ -11,7 +11,7 @@ public interface ServerPacketListener extends BidiPacketListener {
 
     void onPing();
 
-    void onLevelInit();
+    void onLevelInit(ServerLevelInitPacket packet);
 
     void onLevelDataChunk(ServerLevelDataChunkPacket packet);
 
@@ -41,7 +41,8 @@ public final class CPEExtensions {
             new ExtensionInfo("BulkBlockUpdate", 1),
             new ExtensionInfo("TextColors", 1),
             new ExtensionInfo("InstantMOTD", 1),
-            new ExtensionInfo("ExtEntityTeleport", 1)
+            new ExtensionInfo("ExtEntityTeleport", 1),
+            new ExtensionInfo("FastMap", 1)
     );
 
     public final boolean clickDistance;
@@ -50,6 +51,7 @@ public final class CPEExtensions {
     public final boolean textColors;
     public final boolean instantMotd;
     public final boolean extEntityTeleport;
+    public final boolean fastMap;
 
     public CPEExtensions(ExtensionSet extensions) {
         clickDistance = extensions.has("ClickDistance", 1);
@@ -58,5 +60,6 @@ public final class CPEExtensions {
         textColors = extensions.has("TextColors", 1);
         instantMotd = extensions.has("InstantMotd", 1);
         extEntityTeleport = extensions.has("ExtEntityTeleport", 1);
+        fastMap = extensions.has("FastMap", 1);
     }
 }
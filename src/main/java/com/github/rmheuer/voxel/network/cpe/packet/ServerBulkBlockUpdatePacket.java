@@ -31,7 +31,7 @@ public final class ServerBulkBlockUpdatePacket implements ServerPacket {
         indices = in.readInts(count);
         in.skipBytes(1024 - 4 * count);
         blocks = in.readBytes(count);
-        // Don't bother reading the remaining padding
+        in.skipBytes(256 - count);
     }
 
     @Override
@@ -3,20 +3,36 @@ package com.github.rmheuer.voxel.network.packet;
 import com.github.rmheuer.voxel.network.PacketDataInput;
 import com.github.rmheuer.voxel.network.PacketDataOutput;
 import com.github.rmheuer.voxel.network.ServerPacketListener;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCounted;
 
 import java.io.IOException;
 
-public final class ServerLevelDataChunkPacket implements ServerPacket {
+/**
+ * Packet containing part of the compressed level data. The chunk data is held
+ * in a buffer, so this packet is reference counted and must be released after
+ * it is handled.
+ */
+public final class ServerLevelDataChunkPacket implements ServerPacket, ReferenceCounted {
     public static final int MAX_SIZE = 1024;
 
-    private byte[] chunkData;
+    private ByteBuf chunkData;
     private short percentComplete;
 
     public ServerLevelDataChunkPacket() {}
 
     public ServerLevelDataChunkPacket(byte[] chunkData, short percentComplete) {
-        if (chunkData.length > MAX_SIZE)
-            throw new IllegalArgumentException("Chunk data too large: " + chunkData.length + " > " + MAX_SIZE);
+        this(Unpooled.wrappedBuffer(chunkData), percentComplete);
+    }
+
+    /**
+     * @param chunkData chunk data, ownership is transferred to the packet
+     * @param percentComplete percentage of the level that has been sent
+     */
+    public ServerLevelDataChunkPacket(ByteBuf chunkData, short percentComplete) {
+        if (chunkData.readableBytes() > MAX_SIZE)
+            throw new IllegalArgumentException("Chunk data too large: " + chunkData.readableBytes() + " > " + MAX_SIZE);
 
         this.chunkData = chunkData;
         this.percentComplete = percentComplete;
@@ -28,19 +44,20 @@ public final class ServerLevelDataChunkPacket implements ServerPacket {
         if (chunkLength < 0 || chunkLength > MAX_SIZE)
             throw new IOException("Invalid chunk length: " + chunkLength);
 
-        chunkData = in.readBytes(chunkLength);
+        chunkData = in.readRetainedSlice(chunkLength);
         in.skipBytes(MAX_SIZE - chunkLength);
         percentComplete = in.readUByte();
     }
 
     @Override
     public void write(PacketDataOutput out) throws IOException {
-        out.writeShort((short) chunkData.length);
+        int length = chunkData.readableBytes();
+        out.writeShort((short) length);
         out.writeBytes(chunkData);
 
         // Padding
-        if (chunkData.length < MAX_SIZE)
-            out.writeZeros(MAX_SIZE - chunkData.length);
+        if (length < MAX_SIZE)
+            out.writeZeros(MAX_SIZE - length);
 
         out.writeUByte(percentComplete);
     }
@@ -50,7 +67,13 @@ public final class ServerLevelDataChunkPacket implements ServerPacket {
         listener.onLevelDataChunk(this);
     }
 
-    public byte[] getChunkData() {
+    /**
+     * Gets the chunk data. The returned buffer is only valid until the packet
+     * is released.
+     *
+     * @return chunk data
+     */
+    public ByteBuf getChunkData() {
         return chunkData;
     }
 
@@ -58,10 +81,49 @@ public final class ServerLevelDataChunkPacket implements ServerPacket {
         return percentComplete;
     }
 
+    @Override
+    public int refCnt() {
+        return chunkData.refCnt();
+    }
+
+    @Override
+    public ServerLevelDataChunkPacket retain() {
+        chunkData.retain();
+        return this;
+    }
+
+    @Override
+    public ServerLevelDataChunkPacket retain(int increment) {
+        chunkData.retain(increment);
+        return this;
+    }
+
+    @Override
+    public ServerLevelDataChunkPacket touch() {
+        chunkData.touch();
+        return this;
+    }
+
+    @Override
+    public ServerLevelDataChunkPacket touch(Object hint) {
+        chunkData.touch(hint);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return chunkData.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return chunkData.release(decrement);
+    }
+
     @Override
     public String toString() {
         return "ServerLevelDataChunkPacket{"
-            + "chunkData=[" + chunkData.length + " bytes], "
+            + "chunkData=[" + chunkData.readableBytes() + " bytes], "
             + "percentComplete=" + percentComplete
             + "}";
     }
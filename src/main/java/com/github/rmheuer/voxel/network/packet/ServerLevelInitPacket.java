@@ -7,23 +7,57 @@ import com.github.rmheuer.voxel.network.ServerPacketListener;
 public final class ServerLevelInitPacket implements ServerPacket {
     public static final ServerLevelInitPacket INSTANCE = new ServerLevelInitPacket();
 
-    // No data
+    // Only sent with the FastMap extension, otherwise -1
+    private int volume;
 
-    private ServerLevelInitPacket() {}
+    public ServerLevelInitPacket() {
+        volume = -1;
+    }
+
+    /**
+     * Creates a level init packet for the FastMap extension.
+     *
+     * @param volume number of blocks in the level
+     */
+    public ServerLevelInitPacket(int volume) {
+        this.volume = volume;
+    }
 
     @Override
-    public void read(PacketDataInput in) {}
+    public void read(PacketDataInput in) {
+        if (in.readableBytes() >= 4)
+            volume = in.readInt();
+    }
 
     @Override
-    public void write(PacketDataOutput out) {}
+    public void write(PacketDataOutput out) {
+        if (volume >= 0)
+            out.writeInt(volume);
+    }
 
     @Override
     public void handleServer(ServerPacketListener listener) {
-        listener.onLevelInit();
+        listener.onLevelInit(this);
+    }
+
+    /**
+     * Gets whether this packet was sent using the FastMap extension. If it
+     * was, the level data is raw DEFLATE without a length prefix.
+     *
+     * @return whether this is a FastMap level init
+     */
+    public boolean isFastMap() {
+        return volume >= 0;
+    }
+
+    public int getVolume() {
+        return volume;
     }
 
     @Override
     public String toString() {
-        return "ServerLevelInitPacket{}";
+        return "ServerLevelInitPacket{"
+            + "volume=" + volume
+            + "}";
     }
 }
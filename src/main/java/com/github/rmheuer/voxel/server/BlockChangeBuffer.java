@@ -0,0 +1,248 @@
+package com.github.rmheuer.voxel.server;
+
+import com.github.rmheuer.voxel.level.BlockMap;
+import com.github.rmheuer.voxel.network.cpe.packet.ServerBulkBlockUpdatePacket;
+import com.github.rmheuer.voxel.network.packet.ServerPacket;
+import com.github.rmheuer.voxel.network.packet.ServerSetBlockPacket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Collects the block changes made during a tick so they can be sent to the
+ * clients together at the end of the tick. Only the latest change to each
+ * block is sent.
+ */
+public final class BlockChangeBuffer {
+    // Bulk update packets are always 1282 bytes, while set block packets are
+    // 8 bytes, so bulk updates are only smaller with enough changes
+    private static final int MIN_BULK_UPDATE_SIZE = 160;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int blocksX, blocksZ;
+
+    // Changed block indices and their new IDs, in the order each block was
+    // first changed
+    private int[] indices;
+    private byte[] blocks;
+    private int count;
+    // Open addressing hash table from block index to position in the arrays
+    // plus one, or 0 if the slot is empty. Its size is a power of two, and
+    // is kept at least twice the number of changes
+    private int[] table;
+
+    /**
+     * @param map map the changes will be made in
+     */
+    public BlockChangeBuffer(BlockMap map) {
+        blocksX = map.getBlocksX();
+        blocksZ = map.getBlocksZ();
+        indices = new int[INITIAL_CAPACITY];
+        blocks = new byte[INITIAL_CAPACITY];
+        count = 0;
+        table = new int[INITIAL_CAPACITY * 2];
+    }
+
+    /**
+     * Creates a copy of another buffer.
+     *
+     * @param o buffer to copy
+     */
+    public BlockChangeBuffer(BlockChangeBuffer o) {
+        blocksX = o.blocksX;
+        blocksZ = o.blocksZ;
+        indices = o.indices.clone();
+        blocks = o.blocks.clone();
+        count = o.count;
+        table = o.table.clone();
+    }
+
+    /**
+     * Records that a block was changed.
+     *
+     * @param x x coordinate of block
+     * @param y y coordinate of block
+     * @param z z coordinate of block
+     * @param blockId new ID of the block
+     */
+    public void add(int x, int y, int z, byte blockId) {
+        put(x + z * blocksX + y * blocksX * blocksZ, blockId);
+    }
+
+    private void put(int index, byte blockId) {
+        int mask = table.length - 1;
+        int slot = hash(index) & mask;
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            if (indices[entry - 1] == index) {
+                blocks[entry - 1] = blockId;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (count == indices.length) {
+            indices = Arrays.copyOf(indices, count * 2);
+            blocks = Arrays.copyOf(blocks, count * 2);
+        }
+        indices[count] = index;
+        blocks[count] = blockId;
+        count++;
+        table[slot] = count;
+
+        if (count * 2 > table.length)
+            rehash(table.length * 2);
+    }
+
+    private void rehash(int size) {
+        table = new int[size];
+        int mask = size - 1;
+        for (int i = 0; i < count; i++) {
+            int slot = hash(indices[i]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+    }
+
+    // Spreads nearby indices across the table
+    private static int hash(int index) {
+        int h = index * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Records all the changes from another buffer. Changes from the other
+     * buffer replace changes to the same block in this buffer.
+     *
+     * @param other buffer to copy changes from
+     */
+    public void addAll(BlockChangeBuffer other) {
+        for (int i = 0; i < other.count; i++) {
+            put(other.indices[i], other.blocks[i]);
+        }
+    }
+
+    /**
+     * Gets the number of blocks that have been changed.
+     *
+     * @return number of changed blocks
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Sends all recorded changes to the clients that have loaded the level,
+     * then clears them. Clients that support the BulkBlockUpdate extension
+     * are sent bulk updates if there are enough changes, and other clients
+     * are sent each change separately.
+     *
+     * @param server server to broadcast the changes from
+     */
+    public void flush(GameServer server) {
+        if (count == 0)
+            return;
+
+        int[] indices = Arrays.copyOf(this.indices, count);
+        byte[] blocks = Arrays.copyOf(this.blocks, count);
+        clear();
+
+        // Clients still loading the level receive these changes along with
+        // the level data instead
+        Predicate<ClientConnection> loaded = ClientConnection::isLevelLoaded;
+
+        if (indices.length < MIN_BULK_UPDATE_SIZE) {
+            for (ServerPacket packet : makeIndividualPackets(indices, blocks)) {
+                server.broadcastPacket(packet, loaded);
+            }
+            return;
+        }
+
+        Predicate<ClientConnection> supportsBulk = (client) -> client.getExtensions().bulkBlockUpdate;
+        for (ServerPacket packet : makeBulkPackets(indices, blocks)) {
+            server.broadcastPacket(packet, loaded.and(supportsBulk));
+        }
+
+        boolean anyWithoutBulk = false;
+        for (ClientConnection client : server.getAllClients()) {
+            if (loaded.test(client) && !supportsBulk.test(client)) {
+                anyWithoutBulk = true;
+                break;
+            }
+        }
+        if (anyWithoutBulk) {
+            for (ServerPacket packet : makeIndividualPackets(indices, blocks)) {
+                server.broadcastPacket(packet, loaded.and(supportsBulk.negate()));
+            }
+        }
+    }
+
+    /**
+     * Sends all recorded changes to one client. Unlike {@link #flush}, this
+     * does not clear the changes.
+     *
+     * @param client client to send to
+     */
+    public void sendTo(ClientConnection client) {
+        if (count == 0)
+            return;
+
+        int[] indices = Arrays.copyOf(this.indices, count);
+        byte[] blocks = Arrays.copyOf(this.blocks, count);
+
+        List<ServerPacket> packets;
+        if (indices.length >= MIN_BULK_UPDATE_SIZE && client.getExtensions().bulkBlockUpdate)
+            packets = makeBulkPackets(indices, blocks);
+        else
+            packets = makeIndividualPackets(indices, blocks);
+
+        for (ServerPacket packet : packets) {
+            client.sendPacket(packet);
+        }
+    }
+
+    /**
+     * Removes all recorded changes.
+     */
+    public void clear() {
+        if (count == 0)
+            return;
+        Arrays.fill(table, 0);
+        count = 0;
+    }
+
+    private List<ServerPacket> makeBulkPackets(int[] indices, byte[] blocks) {
+        int max = ServerBulkBlockUpdatePacket.MAX_UPDATES;
+
+        List<ServerPacket> packets = new ArrayList<>();
+        for (int start = 0; start < indices.length; start += max) {
+            int len = Math.min(max, indices.length - start);
+
+            int[] packetIndices = new int[len];
+            byte[] packetBlocks = new byte[len];
+            System.arraycopy(indices, start, packetIndices, 0, len);
+            System.arraycopy(blocks, start, packetBlocks, 0, len);
+
+            packets.add(new ServerBulkBlockUpdatePacket(packetIndices, packetBlocks));
+        }
+        return packets;
+    }
+
+    private List<ServerPacket> makeIndividualPackets(int[] indices, byte[] blocks) {
+        List<ServerPacket> packets = new ArrayList<>(indices.length);
+        for (int i = 0; i < indices.length; i++) {
+            int index = indices[i];
+            int x = index % blocksX;
+            int z = (index / blocksX) % blocksZ;
+            int y = index / blocksX / blocksZ;
+
+            packets.add(new ServerSetBlockPacket((short) x, (short) y, (short) z, blocks[i]));
+        }
+        return packets;
+    }
+}
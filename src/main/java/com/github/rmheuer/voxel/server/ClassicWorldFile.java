@@ -2,16 +2,37 @@ package com.github.rmheuer.voxel.server;
 
 import com.github.rmheuer.azalea.math.MathUtil;
 import com.github.rmheuer.nbtlib.*;
+import com.github.rmheuer.voxel.level.BlockMap;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
 import java.util.UUID;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 // https://web.archive.org/web/20240507001809/https://wiki.vg/ClassicWorld_file_format
 public final class ClassicWorldFile {
+    // NBT tag type IDs used when writing the file directly
+    private static final int TAG_END = 0;
+    private static final int TAG_BYTE_ARRAY = 7;
+    private static final int TAG_COMPOUND = 10;
+
+    private static final int SAVE_BUFFER_SIZE = 65536;
+
+    // Software-specific data is stored in the metadata under this name
+    private static final String METADATA_NAME = "VoxelGame";
+
+    // Writes the contents of a file being saved
+    interface FileContentsWriter {
+        void write(Path path) throws IOException;
+    }
+
     public static final class CreatorInfo {
         public final String service;
         public final String username;
@@ -45,8 +66,18 @@ public final class ClassicWorldFile {
         }
     }
 
+    /**
+     * Gets the name of the file the previous save is kept in when saving.
+     *
+     * @param filename name of the world file
+     * @return name of the backup file
+     */
+    public static String getBackupFileName(String filename) {
+        return filename + ".bak";
+    }
+
     public static ClassicWorldFile loadFromFile(String filename) throws IOException {
-        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(filename)))) {
+        try (DataInputStream in = new DataInputStream(ParallelGzipInputStream.open(new FileInputStream(filename)))) {
             NbtTagCompound root = NbtIO.readTagFile(in);
             return new ClassicWorldFile(root);
         }
@@ -128,11 +159,34 @@ public final class ClassicWorldFile {
                 parseAngle(((NbtTagByte) spawn.get("P")).getValue())
         );
 
-        blockData = ((NbtTagByteArray) world.get("BlockArray")).getValue();
-        metadata = (NbtTagCompound) world.get("Metadata");
+        // Block data is stored separately in native level files
+        blockData = world.containsKey("BlockArray")
+                ? ((NbtTagByteArray) world.get("BlockArray")).getValue()
+                : null;
+        metadata = world.containsKey("Metadata")
+                ? (NbtTagCompound) world.get("Metadata")
+                : new NbtTagCompound();
     }
 
     public NbtTagCompound save() {
+        NbtTagCompound world = saveProperties();
+        world.add("BlockArray", new NbtTagByteArray(blockData));
+
+        NbtTagCompound root = new NbtTagCompound();
+        root.add("ClassicWorld", world);
+        return root;
+    }
+
+    // Creates the file structure without the block data, for formats that
+    // store the block data separately
+    NbtTagCompound saveWithoutBlockData() {
+        NbtTagCompound root = new NbtTagCompound();
+        root.add("ClassicWorld", saveProperties());
+        return root;
+    }
+
+    // Creates the tags for everything except the block data
+    private NbtTagCompound saveProperties() {
         NbtTagCompound world = new NbtTagCompound();
         world.add("FormatVersion", new NbtTagByte((byte) 1));
         world.add("Name", new NbtTagString(name));
@@ -169,18 +223,168 @@ public final class ClassicWorldFile {
         spawn.add("P", new NbtTagByte(serializeAngle(spawnInfo.pitch)));
         world.add("Spawn", spawn);
 
-        world.add("BlockArray", new NbtTagByteArray(blockData));
         world.add("Metadata", metadata);
+        return world;
+    }
 
-        NbtTagCompound root = new NbtTagCompound();
-        root.add("ClassicWorld", world);
-        return root;
+    /**
+     * Creates a copy of the level properties. The copy can be saved on
+     * another thread while this one continues to be modified. The block data
+     * is not copied.
+     *
+     * @return copy of the properties
+     */
+    public ClassicWorldFile copyWithoutBlockData() {
+        try {
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(b)) {
+                NbtIO.writeTagFile(saveWithoutBlockData(), out);
+            }
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(b.toByteArray()))) {
+                return new ClassicWorldFile(NbtIO.readTagFile(in));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to copy level properties", e);
+        }
     }
 
     public void saveToFile(String filename) throws IOException {
-        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(filename)))) {
-            NbtIO.writeTagFile(save(), out);
+        writeFile(filename, (path) -> writeData(path, null));
+    }
+
+    /**
+     * Saves the file with block data taken directly from a map. This avoids
+     * packing the whole map into an array before saving it.
+     *
+     * @param filename file to save to
+     * @param map map to take the block data from
+     * @throws IOException if an I/O error occurs
+     */
+    public void saveToFile(String filename, BlockMap map) throws IOException {
+        markModified();
+        writeFile(filename, (path) -> writeData(path, map));
+    }
+
+    /**
+     * Saves a copy of the level with block data taken from a map. Unlike
+     * {@link #saveToFile(String, BlockMap)}, this does not change the
+     * modification time, and doesn't keep a backup of an existing file.
+     *
+     * @param filename file to save to
+     * @param map map to take the block data from
+     * @throws IOException if an I/O error occurs
+     */
+    public void exportToFile(String filename, BlockMap map) throws IOException {
+        writeFile(filename, (path) -> writeData(path, map), false);
+    }
+
+    static void writeFile(String filename, FileContentsWriter writer) throws IOException {
+        writeFile(filename, writer, true);
+    }
+
+    // Saves to a temporary file first, and only replaces the existing file
+    // once the new one is completely written. This way a crash while saving
+    // can't leave behind a partially written file. If keepBackup is set, the
+    // previous file is kept as a backup.
+    private static void writeFile(String filename, FileContentsWriter writer, boolean keepBackup) throws IOException {
+        Path target = Paths.get(filename).toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Path backup = Paths.get(getBackupFileName(target.toString()));
+
+        boolean success = false;
+        try {
+            writer.write(temp);
+
+            // Make sure the data is actually on disk before it replaces the
+            // old file
+            syncFile(temp);
+
+            if (keepBackup && Files.exists(target)) {
+                Files.copy(target, backup, StandardCopyOption.REPLACE_EXISTING);
+                syncFile(backup);
+            }
+
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            success = true;
+        } finally {
+            if (!success)
+                Files.deleteIfExists(temp);
+        }
+
+        syncDirectory(target.getParent());
+    }
+
+    private static void syncFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    // Makes sure the rename is on disk. Not all platforms allow opening a
+    // directory, so this is only done where possible
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Ignore, the file is still saved
+        }
+    }
+
+    // Writes the NBT structure with the block data streamed into it, instead
+    // of building a tree of tags containing the whole block array
+    private void writeData(Path path, BlockMap map) throws IOException {
+        byte[] properties = writePropertiesCompound();
+
+        // Compressing is the slowest part of saving, so use all the cores
+        OutputStream fileOut = new ParallelGzipOutputStream(Files.newOutputStream(path));
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, SAVE_BUFFER_SIZE))) {
+            // Leave the compound open so the block array can be added
+            out.write(properties, 0, properties.length - 1);
+
+            out.writeByte(TAG_BYTE_ARRAY);
+            out.writeUTF("BlockArray");
+            if (map != null) {
+                out.writeInt(map.getBlocksX() * map.getBlocksY() * map.getBlocksZ());
+                map.writeBlockData(out);
+            } else {
+                out.writeInt(blockData.length);
+                out.write(blockData);
+            }
+
+            out.writeByte(TAG_END);
+        }
+    }
+
+    // Writes the ClassicWorld compound without the block data using NbtIO,
+    // so the structure is the same as a file saved from a tree of tags. The
+    // result is checked to be a single ClassicWorld compound, so the block
+    // array can be inserted before its end tag.
+    private byte[] writePropertiesCompound() throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(b)) {
+            NbtIO.writeTagFile(saveWithoutBlockData(), out);
+        }
+        byte[] data = b.toByteArray();
+
+        ByteArrayOutputStream expectedStart = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(expectedStart)) {
+            out.writeByte(TAG_COMPOUND);
+            out.writeUTF("ClassicWorld");
+        }
+        byte[] start = expectedStart.toByteArray();
+
+        boolean valid = data.length > start.length && data[data.length - 1] == TAG_END;
+        for (int i = 0; valid && i < start.length; i++) {
+            valid = data[i] == start[i];
         }
+        if (!valid)
+            throw new IOException("Unexpected NBT structure for level properties");
+
+        return data;
     }
 
     private UUID uuidFromBytes(byte[] bytes) {
@@ -213,10 +417,23 @@ public final class ClassicWorldFile {
         timeLastModified = Instant.now().getEpochSecond();
     }
 
+    /**
+     * Discards the loaded block data. This should be used once the block data
+     * has been copied into a map, so it isn't kept in memory twice. The file
+     * must then be saved using {@link #saveToFile(String, BlockMap)}.
+     */
+    public void releaseBlockData() {
+        blockData = null;
+    }
+
     public void setSpawnInfo(SpawnInfo spawnInfo) {
         this.spawnInfo = spawnInfo;
     }
 
+    public void markModified() {
+        timeLastModified = Instant.now().getEpochSecond();
+    }
+
     public void markAccessed() {
         timeLastAccessed = Instant.now().getEpochSecond();
     }
@@ -269,6 +486,37 @@ public final class ClassicWorldFile {
         return timeLastModified;
     }
 
+    /**
+     * Gets the ID of the level journal that belongs to this file.
+     *
+     * @return journal ID, or null if this file has no journal
+     */
+    public Long getJournalId() {
+        if (!metadata.containsKey(METADATA_NAME))
+            return null;
+        NbtTagCompound voxelGame = (NbtTagCompound) metadata.get(METADATA_NAME);
+        if (!voxelGame.containsKey("JournalId"))
+            return null;
+        return ((NbtTagLong) voxelGame.get("JournalId")).getValue();
+    }
+
+    /**
+     * Sets the ID of the level journal that belongs to this file. This is
+     * stored in the file's metadata.
+     *
+     * @param journalId new journal ID
+     */
+    public void setJournalId(long journalId) {
+        NbtTagCompound voxelGame;
+        if (metadata.containsKey(METADATA_NAME)) {
+            voxelGame = (NbtTagCompound) metadata.get(METADATA_NAME);
+        } else {
+            voxelGame = new NbtTagCompound();
+            metadata.add(METADATA_NAME, voxelGame);
+        }
+        voxelGame.add("JournalId", new NbtTagLong(journalId));
+    }
+
     public NbtTagCompound getMetadata() {
         return metadata;
     }
@@ -2,7 +2,7 @@ package com.github.rmheuer.voxel.server;
 
 import com.github.rmheuer.azalea.math.MathUtil;
 import com.github.rmheuer.azalea.render.Colors;
-import com.github.rmheuer.voxel.level.BlockMap;
+import com.github.rmheuer.voxel.block.Blocks;
 import com.github.rmheuer.voxel.network.ClientPacketListener;
 import com.github.rmheuer.voxel.network.Connection;
 import com.github.rmheuer.voxel.network.PacketDataBuf;
@@ -16,11 +16,8 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import org.joml.Vector3f;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
-import java.util.zip.GZIPOutputStream;
 
 public final class ClientConnection extends Connection<ClientPacket, ServerPacket> implements ClientPacketListener {
     private static final int PING_INTERVAL = 20;
@@ -37,6 +34,10 @@ public final class ClientConnection extends Connection<ClientPacket, ServerPacke
     
     private Vector3f position;
     private float pitch, yaw;
+    // Only accessed from the tick thread
+    private boolean spawned;
+    private boolean levelLoaded;
+    private volatile LevelTransfer levelTransfer;
 
     private int pingTimer;
 
@@ -44,6 +45,7 @@ public final class ClientConnection extends Connection<ClientPacket, ServerPacke
         super(channel);
 
         this.server = server;
+        setFlushMode(server.getFlushMode());
         playerId = -1;
         username = null;
 
@@ -52,6 +54,8 @@ public final class ClientConnection extends Connection<ClientPacket, ServerPacke
         partialChatMessage = new StringBuilder();
 
         pingTimer = PING_INTERVAL;
+        spawned = false;
+        levelLoaded = false;
     }
 
     public void tick() {
@@ -59,7 +63,8 @@ public final class ClientConnection extends Connection<ClientPacket, ServerPacke
             printNamed("Client disconnected");
             close();
 
-            server.broadcastPacketToOthers(new ServerDespawnPlayerPacket(playerId), this);
+            server.getPlayerInterest().removePlayer(this);
+            server.getLevelDataCache().removeClient(this);
             server.removeClient(playerId);
 
             server.broadcastSystemMessage(username + " left the game");
@@ -73,11 +78,11 @@ public final class ClientConnection extends Connection<ClientPacket, ServerPacke
             sendPacket(ServerPingPacket.INSTANCE);
 
             // Refresh absolute position to prevent desync
-            server.broadcastPacketToOthers(new BidiPlayerPositionPacket(
+            server.broadcastPacket(new BidiPlayerPositionPacket(
                     playerId,
                     position.x, position.y, position.z,
                     yaw, pitch
-            ), this);
+            ), server.getPlayerInterest().getViewers(this));
         }
     }
 
@@ -130,7 +135,7 @@ public final class ClientConnection extends Connection<ClientPacket, ServerPacke
             initPlayer();
     }
 
-    private ServerSpawnPlayerPacket makeSpawnPlayerPacket() {
+    public ServerSpawnPlayerPacket makeSpawnPlayerPacket() {
         return new ServerSpawnPlayerPacket(
                 playerId, username,
                 position.x, position.y, position.z,
@@ -154,43 +159,47 @@ public final class ClientConnection extends Connection<ClientPacket, ServerPacke
         // Tell client about itself
         sendPacket(new ServerSpawnPlayerPacket((byte) -1, username, spawn.x, spawn.y, spawn.z, spawn.yaw, spawn.pitch));
 
-        // Tell client about the other players on the server
-        for (ClientConnection client : server.getAllClients()) {
-            sendPacket(client.makeSpawnPlayerPacket());
-        }
-
-        // Tell others that we joined
         playerId = server.addClient(this);
-        server.broadcastPacketToOthers(makeSpawnPlayerPacket(), this);
         server.broadcastSystemMessage(username + " joined the game");
 
-        long prev = System.nanoTime();
-        BlockMap map = server.getCopyOfMap();
-        System.out.println(System.nanoTime() - prev);
-        byte[] rawMapData = map.packBlockData();
-
-        ByteArrayOutputStream b = new ByteArrayOutputStream();
-        try (GZIPOutputStream gzip = new GZIPOutputStream(b)) {
-            DataOutputStream out = new DataOutputStream(gzip);
-            out.writeInt(rawMapData.length);
-            out.write(rawMapData);
-            gzip.finish();
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to compress level data");
-        }
-        byte[] mapData = b.toByteArray();
+        server.runOnTickThread(() -> {
+            // Don't add if already disconnected, since it would never be removed
+            if (!isConnected())
+                return;
 
-        sendPacket(ServerLevelInitPacket.INSTANCE);
-        for (int i = 0; i < MathUtil.ceilDiv(mapData.length, 1024); i++) {
-            int start = i * 1024;
-            byte[] section = new byte[Math.min(1024, mapData.length - start)];
-            System.arraycopy(mapData, start, section, 0, section.length);
+            // Spawn in for nearby players, and spawn nearby players for this client
+            server.getPlayerInterest().addPlayer(this);
+            spawned = true;
+            server.getLevelDataCache().sendLevel(this);
+        });
+    }
 
-            int percent = (100 * (start + section.length)) / mapData.length;
-            sendPacket(new ServerLevelDataChunkPacket(section, (short) percent));
-        }
-        sendPacket(new ServerLevelFinalizePacket((short) map.getBlocksX(), (short) map.getBlocksY(), (short) map.getBlocksZ()));
+    /**
+     * Starts sending the level data to this client.
+     *
+     * @param transfer transfer to send the data with
+     */
+    public void startLevelTransfer(LevelTransfer transfer) {
+        levelTransfer = transfer;
+        runOnIOThread(transfer::sendMore);
+    }
 
+    @Override
+    protected void onWritable() {
+        LevelTransfer transfer = levelTransfer;
+        if (transfer != null)
+            transfer.sendMore();
+    }
+
+    /**
+     * Called on the tick thread once the level data has been sent to this
+     * client. Block changes are only sent to the client after this.
+     */
+    public void onLevelSent() {
+        levelLoaded = true;
+        levelTransfer = null;
+
+        ClassicWorldFile.SpawnInfo spawn = server.getSpawnInfo();
         sendPacket(new BidiPlayerPositionPacket((byte) -1, spawn.x, spawn.y, spawn.z, spawn.yaw, spawn.pitch));
 
         if (extensions.textColors) {
@@ -220,15 +229,44 @@ public final class ClientConnection extends Connection<ClientPacket, ServerPacke
 
     @Override
     public void onSetBlock(ClientSetBlockPacket packet) {
-        if (packet.getMode() == ClientSetBlockPacket.Mode.PLACED) {
-            server.placeBlock(packet.getX(), packet.getY(), packet.getZ(), packet.getBlockId());
-        } else {
-            server.breakBlock(packet.getX(), packet.getY(), packet.getZ());
+        if (!server.isBlockInBounds(packet.getX(), packet.getY(), packet.getZ())) {
+            kick("Block position out of bounds");
+            return;
+        }
+        if (packet.getMode() == ClientSetBlockPacket.Mode.PLACED && !Blocks.isValidId(packet.getBlockId())) {
+            kick("Invalid block");
+            return;
         }
+
+        server.runOnTickThread(() -> {
+            if (packet.getMode() == ClientSetBlockPacket.Mode.PLACED) {
+                if (!Blocks.getBlock(packet.getBlockId()).isPlaceable()) {
+                    // The client already placed it locally, so undo that
+                    byte actual = server.getBlockId(packet.getX(), packet.getY(), packet.getZ());
+                    sendPacket(new ServerSetBlockPacket(packet.getX(), packet.getY(), packet.getZ(), actual));
+                    return;
+                }
+                server.placeBlock(packet.getX(), packet.getY(), packet.getZ(), packet.getBlockId());
+            } else {
+                server.breakBlock(packet.getX(), packet.getY(), packet.getZ());
+            }
+        });
     }
 
     @Override
     public void onPlayerPosition(BidiPlayerPositionPacket packet) {
+        server.runOnTickThread(() -> updatePosition(packet));
+    }
+
+    // Sends the movement to players that can see this player
+    private void updatePosition(BidiPlayerPositionPacket packet) {
+        // Clients can send their position before they have joined, such as
+        // while extensions are being negotiated
+        if (!spawned)
+            return;
+
+        Collection<ClientConnection> viewers = server.getPlayerInterest().getViewers(this);
+
         float deltaX = packet.getX() - position.x;
         float deltaY = packet.getY() - position.y;
         float deltaZ = packet.getZ() - position.z;
@@ -238,34 +276,38 @@ public final class ClientConnection extends Connection<ClientPacket, ServerPacke
         boolean turned = packet.getPitch() != pitch || packet.getYaw() != yaw;
 
         if (maxDelta > 3) {
-            server.broadcastPacketToOthers(new BidiPlayerPositionPacket(
+            server.broadcastPacket(new BidiPlayerPositionPacket(
                     playerId,
                     packet.getX(), packet.getY(), packet.getZ(),
                     packet.getYaw(), packet.getPitch()
-            ), this);
+            ), viewers);
         } else if (movedXYZ) {
             if (turned) {
-                server.broadcastPacketToOthers(new ServerRelativeMoveAndLookPacket(
+                server.broadcastPacket(new ServerRelativeMoveAndLookPacket(
                         playerId,
                         deltaX, deltaY, deltaZ,
                         packet.getYaw(), packet.getPitch()
-                ), this);
+                ), viewers);
             } else {
-                server.broadcastPacketToOthers(new ServerRelativeMovePacket(
+                server.broadcastPacket(new ServerRelativeMovePacket(
                         playerId,
                         deltaX, deltaY, deltaZ
-                ), this);
+                ), viewers);
             }
         } else if (turned) {
-            server.broadcastPacketToOthers(new ServerLookPacket(
+            server.broadcastPacket(new ServerLookPacket(
                     playerId,
                     packet.getYaw(), packet.getPitch()
-            ), this);
+            ), viewers);
         }
 
         position.set(packet.getX(), packet.getY(), packet.getZ());
         pitch = packet.getPitch();
         yaw = packet.getYaw();
+
+        // Players already in range were sent the movement above, and players
+        // that come into range now are spawned at the new position
+        server.getPlayerInterest().updatePlayer(this);
     }
 
     private void dispatchChatMessage(String message) {
@@ -317,6 +359,22 @@ public final class ClientConnection extends Connection<ClientPacket, ServerPacke
         super.channelRead(ctx, msg);
     }
 
+    public byte getPlayerId() {
+        return playerId;
+    }
+
+    public Vector3f getPosition() {
+        return position;
+    }
+
+    public boolean isLevelLoaded() {
+        return levelLoaded;
+    }
+
+    public CPEExtensions getExtensions() {
+        return extensions;
+    }
+
     public void kick(String reason) {
         printNamed("Kicking for: " + reason);
         sendPacket(new ServerDisconnectPacket(reason));
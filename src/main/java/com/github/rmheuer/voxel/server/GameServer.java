@@ -5,40 +5,61 @@ import com.github.rmheuer.voxel.block.Block;
 import com.github.rmheuer.voxel.block.Blocks;
 import com.github.rmheuer.voxel.level.BlockMap;
 import com.github.rmheuer.voxel.level.LevelAccess;
-import com.github.rmheuer.voxel.level.MapSection;
+import com.github.rmheuer.voxel.network.Connection;
+import com.github.rmheuer.voxel.network.PacketEncoder;
+import com.github.rmheuer.voxel.network.PacketRegistry;
 import com.github.rmheuer.voxel.network.packet.BidiChatMessagePacket;
 import com.github.rmheuer.voxel.network.packet.ServerPacket;
-import com.github.rmheuer.voxel.network.packet.ServerSetBlockPacket;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.local.LocalAddress;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Predicate;
 
 public final class GameServer implements LevelAccess {
-    private static final String SERVER_LEVEL_FILE = "server_level.cw";
-    private static final int AUTOSAVE_INTERVAL_TICKS = 60 * 20;
+    private static final String SERVER_LEVEL_FILE = "server_level" + NativeLevelFile.EXTENSION;
+    // Autosaves usually only append changed sections to the journal, so they
+    // can happen often
+    private static final int AUTOSAVE_INTERVAL_TICKS = 5 * 20;
+    // Limits how long one tick can take if tasks are scheduled faster than
+    // they can run. The rest are run in the following ticks
+    private static final int MAX_TASKS_PER_TICK = 4096;
+    private static final float DEFAULT_VIEW_RADIUS = 64;
 
     private static CubeFace[] FACES = CubeFace.values();
 
     private final Queue<String> consoleInputQueue;
     private final ConsoleInputThread consoleThread;
 
+    // Actions from other threads to run on the tick thread
+    private final Queue<Runnable> scheduledTasks;
+
     private NetworkConnectionHandler networkConnectionHandler;
     private LocalConnectionHandler localConnectionHandler;
 
     private final String levelFileName;
     private final ClassicWorldFile levelFile;
+    private final LevelSaver levelSaver;
 
     private final Map<Byte, ClientConnection> clients;
     private final BlockMap map;
+    private final SectionLocks mapLocks;
+    // Only accessed from the tick thread
+    private final BlockChangeBuffer blockChanges;
+    private final PlayerInterestManager playerInterest;
+    private final LevelDataCache levelDataCache;
 
+    private volatile Connection.FlushMode flushMode;
     private volatile boolean running;
 
-    private CompletableFuture<Void> autosaveFuture;
     private int autosaveTimer;
 
     public GameServer(String levelFileName) throws Exception {
@@ -47,22 +68,21 @@ public final class GameServer implements LevelAccess {
         consoleInputQueue = new ConcurrentLinkedQueue<>();
         consoleThread = new ConsoleInputThread(consoleInputQueue);
 
+        scheduledTasks = new ConcurrentLinkedQueue<>();
+
         clients = new ConcurrentHashMap<>();
+        flushMode = Connection.FlushMode.BATCHED;
 
         ClassicWorldFile levelFile;
         BlockMap map;
         try {
-            levelFile = ClassicWorldFile.loadFromFile(levelFileName);
-            map = new BlockMap(
-                    levelFile.getSizeX() / MapSection.SIZE,
-                    levelFile.getSizeY() / MapSection.SIZE,
-                    levelFile.getSizeZ() / MapSection.SIZE,
-                    levelFile.getBlockData()
-            );
+            NativeLevelFile level = loadLevel(levelFileName);
+            levelFile = level.getInfo();
+            map = level.getMap();
         } catch (FileNotFoundException e) {
             System.err.println("Level file " + levelFileName + " not found, generating new level");
 
-            map = LevelGenerator.generateLevel(128 / 16);
+            map = LevelGenerator.generateLevel(128 / 16, 64 / 16, 128 / 16, new Random().nextLong());
 
             levelFile = new ClassicWorldFile(
                     "Server Level",
@@ -77,6 +97,73 @@ public final class GameServer implements LevelAccess {
         }
         this.levelFile = levelFile;
         this.map = map;
+
+        levelSaver = new LevelSaver(levelFileName, levelFile, map);
+
+        mapLocks = new SectionLocks(map);
+        blockChanges = new BlockChangeBuffer(map);
+        playerInterest = new PlayerInterestManager(map, DEFAULT_VIEW_RADIUS);
+        levelDataCache = new LevelDataCache(this, map);
+    }
+
+    // Loads the level, importing it from a ClassicWorld file with the same
+    // name if there is no native level file yet
+    private static NativeLevelFile loadLevel(String fileName) throws IOException {
+        if (NativeLevelFile.isNativeFileName(fileName) && !Files.exists(Paths.get(fileName))) {
+            String classicFileName = NativeLevelFile.getClassicWorldFileName(fileName);
+            if (Files.exists(Paths.get(classicFileName))) {
+                System.out.println("Importing level from " + classicFileName);
+                NativeLevelFile level = loadLevelFile(classicFileName);
+
+                // Changes autosaved since the ClassicWorld file was last
+                // fully saved are only in its journal
+                Long journalId = level.getInfo().getJournalId();
+                if (journalId != null) {
+                    LevelJournal journal = new LevelJournal(classicFileName);
+                    journal.replay(journalId, level.getMap());
+                    journal.close();
+                }
+                return level;
+            }
+        }
+
+        return loadLevelFile(fileName);
+    }
+
+    // Loads the level file, using the backup if the file is damaged
+    private static NativeLevelFile loadLevelFile(String fileName) throws IOException {
+        // The backup is in the same format, but has a different extension
+        boolean nativeFormat = NativeLevelFile.isNativeFileName(fileName);
+        try {
+            return readLevelFile(fileName, nativeFormat);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            String backupFileName = ClassicWorldFile.getBackupFileName(fileName);
+            // Don't generate a new level over the damaged one if there is no
+            // backup
+            if (!Files.exists(Paths.get(backupFileName)))
+                throw e;
+
+            System.err.println("Failed to load level file " + fileName + ", loading backup " + backupFileName);
+            e.printStackTrace();
+            NativeLevelFile level = readLevelFile(backupFileName, nativeFormat);
+
+            // Otherwise the next save would replace the backup with the
+            // damaged file. It's kept in case it can be recovered manually
+            String corruptFileName = fileName + ".corrupt";
+            Files.move(Paths.get(fileName), Paths.get(corruptFileName), StandardCopyOption.REPLACE_EXISTING);
+            System.err.println("Moved damaged level file to " + corruptFileName);
+
+            return level;
+        }
+    }
+
+    private static NativeLevelFile readLevelFile(String fileName, boolean nativeFormat) throws IOException {
+        if (nativeFormat)
+            return NativeLevelFile.loadFromFile(fileName);
+        else
+            return NativeLevelFile.importClassicWorld(fileName);
     }
 
     public void openToNetwork(int port) throws Exception {
@@ -96,6 +183,23 @@ public final class GameServer implements LevelAccess {
         return networkConnectionHandler != null;
     }
 
+    /**
+     * Sets when packets sent to clients are flushed to the network. If
+     * batched, packets are flushed once at the end of each tick.
+     *
+     * @param flushMode new flush mode
+     */
+    public void setFlushMode(Connection.FlushMode flushMode) {
+        this.flushMode = flushMode;
+        for (ClientConnection client : clients.values()) {
+            client.setFlushMode(flushMode);
+        }
+    }
+
+    public Connection.FlushMode getFlushMode() {
+        return flushMode;
+    }
+
     public byte addClient(ClientConnection client) {
         // Try each player ID sequentially until we find an available one
         // There's probably a better way to do this
@@ -121,81 +225,193 @@ public final class GameServer implements LevelAccess {
         return clients.values();
     }
 
-    public void broadcastPacketToAll(ServerPacket packet) {
-        for (ClientConnection client : clients.values()) {
-            client.sendPacket(packet);
-        }
+    /**
+     * Sends a packet to every client matching a filter. The packet is only
+     * encoded once, and the encoded data is shared between all the network
+     * clients.
+     *
+     * @param packet packet to send
+     * @param filter filter for which clients to send to
+     */
+    public void broadcastPacket(ServerPacket packet, Predicate<ClientConnection> filter) {
+        sendToClients(packet, clients.values(), filter);
     }
 
-    public void broadcastPacketToOthers(ServerPacket packet, ClientConnection excluded) {
-        for (ClientConnection client : clients.values()) {
-            if (client == excluded)
-                continue;
+    /**
+     * Sends a packet to a specific set of clients. The packet is only encoded
+     * once, like with {@link #broadcastPacket(ServerPacket, Predicate)}.
+     *
+     * @param packet packet to send
+     * @param recipients clients to send to
+     */
+    public void broadcastPacket(ServerPacket packet, Collection<ClientConnection> recipients) {
+        sendToClients(packet, recipients, (client) -> true);
+    }
+
+    private void sendToClients(ServerPacket packet, Collection<ClientConnection> recipients, Predicate<ClientConnection> filter) {
+        ByteBuf encoded = null;
+        try {
+            for (ClientConnection client : recipients) {
+                if (!filter.test(client))
+                    continue;
+
+                if (!client.hasPacketEncoder()) {
+                    client.sendPacket(packet);
+                    continue;
+                }
 
-            client.sendPacket(packet);
+                if (encoded == null)
+                    encoded = PacketEncoder.encodeToBuffer(PacketRegistry.getServerMapping(), packet);
+                client.sendEncodedPacket(encoded.retainedDuplicate());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to encode packet " + packet, e);
+        } finally {
+            if (encoded != null)
+                encoded.release();
         }
     }
 
+    public void broadcastPacketToAll(ServerPacket packet) {
+        broadcastPacket(packet, (client) -> true);
+    }
+
+    public void broadcastPacketToOthers(ServerPacket packet, ClientConnection excluded) {
+        broadcastPacket(packet, (client) -> client != excluded);
+    }
+
     public void broadcastSystemMessage(String message) {
         broadcastPacketToAll(new BidiChatMessagePacket((byte) -1, message));
     }
 
+    /**
+     * Gets the manager for which players can see each other. This should only
+     * be used from the tick thread.
+     *
+     * @return player interest manager
+     */
+    public PlayerInterestManager getPlayerInterest() {
+        return playerInterest;
+    }
+
+    /**
+     * Gets the cache of compressed level data sent to joining clients. This
+     * should only be used from the tick thread.
+     *
+     * @return level data cache
+     */
+    public LevelDataCache getLevelDataCache() {
+        return levelDataCache;
+    }
+
+    /**
+     * Sets the distance within which players are visible to each other.
+     * Player movement is only sent to players within this distance.
+     *
+     * @param radius view radius in blocks
+     */
+    public void setViewRadius(float radius) {
+        runOnTickThread(() -> playerInterest.setRadius(radius));
+    }
+
+    public LevelSaver getLevelSaver() {
+        return levelSaver;
+    }
+
     public ClassicWorldFile.SpawnInfo getSpawnInfo() {
         return levelFile.getSpawnInfo();
     }
 
-    public BlockMap getCopyOfMap() {
-        synchronized (map) {
-            return new BlockMap(map);
+    public BlockMap getMapSnapshot() {
+        mapLocks.lockAll();
+        try {
+            return map.snapshot();
+        } finally {
+            mapLocks.unlockAll();
         }
     }
 
+    /**
+     * Gets whether a block position is within the level. This can be called
+     * from any thread, since the size of the level never changes.
+     *
+     * @param x x coordinate of block
+     * @param y y coordinate of block
+     * @param z z coordinate of block
+     * @return whether the position is in bounds
+     */
+    public boolean isBlockInBounds(int x, int y, int z) {
+        return map.isBlockInBounds(x, y, z);
+    }
+
     @Override
     public byte getBlockId(int x, int y, int z) {
-        synchronized (map) {
+        Lock lock = mapLocks.getLock(x, y, z);
+        lock.lock();
+        try {
             return map.getBlockId(x, y, z);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Sets the block in the map and records the change to send to clients.
+    // The section lock is held for both, so clients receive changes to the
+    // same block in the same order they were made to the map
+    private void setBlockIdAndRecord(int x, int y, int z, byte blockId) {
+        Lock lock = mapLocks.getLock(x, y, z);
+        lock.lock();
+        try {
+            map.setBlockId(x, y, z, blockId);
+            blockChanges.add(x, y, z, blockId);
+            levelDataCache.recordChange(x, y, z, blockId);
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     public void setBlockId(int x, int y, int z, byte blockId) {
-        synchronized (map) {
-            map.setBlockId(x, y, z, blockId);
-            broadcastPacketToAll(new ServerSetBlockPacket((short) x, (short) y, (short) z, blockId));
+        setBlockIdAndRecord(x, y, z, blockId);
 
-            Block placed = Blocks.getBlock(blockId);
-            if (placed.getNeighborUpdateBehavior() != null)
-                placed.getNeighborUpdateBehavior().doAction(this, x, y, z, blockId);
+        Block placed = Blocks.getBlock(blockId);
+        if (placed.getNeighborUpdateBehavior() != null)
+            placed.getNeighborUpdateBehavior().doAction(this, x, y, z, blockId);
 
-            updateNeighbors(x, y, z);
-        }
+        updateNeighbors(x, y, z);
     }
 
     @Override
     public void setBlockIdNoNeighborUpdates(int x, int y, int z, byte blockId) {
-        synchronized (map) {
-            map.setBlockId(x, y, z, blockId);
-            broadcastPacketToAll(new ServerSetBlockPacket((short) x, (short) y, (short) z, blockId));
-        }
+        setBlockIdAndRecord(x, y, z, blockId);
     }
 
     @Override
     public void updateNeighbors(int x, int y, int z) {
-        synchronized (map) {
-            for (CubeFace face : FACES) {
-                int nx = x + face.x;
-                int ny = y + face.y;
-                int nz = z + face.z;
-                if (map.isBlockInBounds(nx, ny, nz)) {
-                    byte neighborId = map.getBlockId(nx, ny, nz);
-                    Block neighbor = Blocks.getBlock(neighborId);
-                    if (neighbor.getNeighborUpdateBehavior() != null)
-                        neighbor.getNeighborUpdateBehavior().doAction(this, nx, ny, nz, neighborId);
-                }
+        for (CubeFace face : FACES) {
+            int nx = x + face.x;
+            int ny = y + face.y;
+            int nz = z + face.z;
+            if (map.isBlockInBounds(nx, ny, nz)) {
+                byte neighborId = getBlockId(nx, ny, nz);
+                Block neighbor = Blocks.getBlock(neighborId);
+                if (neighbor.getNeighborUpdateBehavior() != null)
+                    neighbor.getNeighborUpdateBehavior().doAction(this, nx, ny, nz, neighborId);
             }
         }
     }
 
+    /**
+     * Schedules an action to run at the start of the next tick. The level
+     * should only be modified on the tick thread, so this should be used to
+     * modify the level from other threads.
+     *
+     * @param fn action to run
+     */
+    public void runOnTickThread(Runnable fn) {
+        scheduledTasks.add(fn);
+    }
+
     public void placeBlock(int x, int y, int z, byte blockId) {
         Block block = Blocks.getBlock(blockId);
         block.getPlacementBehavior().doAction(this, x, y, z, blockId);
@@ -212,14 +428,39 @@ public final class GameServer implements LevelAccess {
     private void handleConsoleCommand(String command) {
         if (command.equals("stop")) {
             running = false;
+        } else if (command.equals("savestats")) {
+            LevelSaver.Stats stats = levelSaver.getStats();
+            System.out.println("Saves: " + stats.saveCount + " (" + stats.fullSaveCount + " full, " + stats.combinedSaveCount + " combined)");
+            System.out.println("Total: " + stats.totalBytesWritten + " bytes in " + stats.totalSaveMillis + " ms");
+            System.out.println("Last save: " + stats.lastSaveBytes + " bytes in " + stats.lastSaveMillis + " ms");
+        } else if (command.startsWith("export ")) {
+            String fileName = command.substring("export ".length()).trim();
+            levelSaver.exportClassicWorld(levelFile.copyWithoutBlockData(), getMapSnapshot(), fileName);
         }
     }
 
     private void tick() {
+        Runnable task;
+        for (int i = 0; i < MAX_TASKS_PER_TICK && (task = scheduledTasks.poll()) != null; i++) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // One bad task shouldn't stop the server without saving
+                System.err.println("Scheduled task failed");
+                e.printStackTrace();
+            }
+        }
+
         for (ClientConnection client : clients.values()) {
             client.tick();
         }
 
+        blockChanges.flush(this);
+
+        for (ClientConnection client : clients.values()) {
+            client.flush();
+        }
+
         if (autosaveTimer++ >= AUTOSAVE_INTERVAL_TICKS) {
             autosaveTimer = 0;
             startAutosave();
@@ -229,6 +470,9 @@ public final class GameServer implements LevelAccess {
     public void run() {
         consoleThread.start();
 
+        // Compress the level now so the first clients can join quickly
+        levelDataCache.startCompressing();
+
         long prevTime = System.nanoTime();
         double unprocessedTime = 0;
         double tickInterval = 1 / 20.0;
@@ -267,39 +511,28 @@ public final class GameServer implements LevelAccess {
         }
 
         levelFile.markAccessed();
-        if (autosaveFuture != null)
-            autosaveFuture.join();
-        saveLevel(map);
+        levelSaver.saveAndClose(levelFile.copyWithoutBlockData(), getMapSnapshot());
+        levelDataCache.close();
 
         consoleThread.close();
     }
 
     private void startAutosave() {
-        // If previous one hasn't finished, don't start another
-        if (autosaveFuture != null && !autosaveFuture.isDone())
-            return;
-
         if (!clients.isEmpty())
             levelFile.markAccessed();
-        BlockMap mapCopy = getCopyOfMap();
-
-        autosaveFuture = new CompletableFuture<>();
-        new Thread(() -> {
-            saveLevel(mapCopy);
-            autosaveFuture.complete(null);
-        }).start();
-    }
-
-    private void saveLevel(BlockMap map) {
-        levelFile.setBlockData(map.packBlockData());
 
+        // Take the modified sections along with the snapshot, so they match
+        BlockMap snapshot;
+        BitSet dirtySections;
+        mapLocks.lockAll();
         try {
-            System.out.println("Saving level");
-            levelFile.saveToFile(levelFileName);
-        } catch (IOException e) {
-            System.err.println("Failed to save level!");
-            e.printStackTrace();
+            snapshot = map.snapshot();
+            dirtySections = map.takeDirtySections();
+        } finally {
+            mapLocks.unlockAll();
         }
+
+        levelSaver.autosave(levelFile.copyWithoutBlockData(), snapshot, dirtySections);
     }
 
     public void stop() {
@@ -312,6 +545,8 @@ public final class GameServer implements LevelAccess {
             port = Integer.parseInt(args[0]);
 
         GameServer server = new GameServer(SERVER_LEVEL_FILE);
+        if (args.length > 1)
+            server.setFlushMode(Connection.FlushMode.valueOf(args[1].toUpperCase(Locale.ROOT)));
         server.openToNetwork(port);
         server.run();
     }
@@ -0,0 +1,249 @@
+package com.github.rmheuer.voxel.server;
+
+import com.github.rmheuer.voxel.level.BlockMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps a compressed copy of the level to send to joining clients, so the
+ * level doesn't need to be compressed again for every client. Changes made
+ * after the copy was compressed, or while the level is being sent, are
+ * recorded and sent after the level data. Once too many changes are recorded,
+ * the level is compressed again the next time a client joins. The classic
+ * format and the format used by the FastMap extension are cached separately,
+ * and each is only compressed once a client needs it. Other than compressing,
+ * this should only be used from the tick thread.
+ */
+public final class LevelDataCache {
+    // Past this many changes it's better to compress the level again
+    private static final int MAX_RECORDED_CHANGES = 16384;
+
+    // Cached level data in one format
+    private static final class CompressedLevel {
+        // Whether this is raw DEFLATE for clients with FastMap, or GZIP with
+        // length prefix for clients without
+        final boolean fastMap;
+
+        // Compressed level data, or null if it needs to be compressed again
+        byte[] data;
+        // Changes made since data was compressed
+        final BlockChangeBuffer changesSinceCompressed;
+
+        boolean compressing;
+        // Changes made since the in-progress compression started
+        final BlockChangeBuffer changesSinceCompressStart;
+        // Clients waiting for the in-progress compression to finish
+        final List<ClientConnection> waitingClients;
+
+        CompressedLevel(boolean fastMap, BlockMap map) {
+            this.fastMap = fastMap;
+            data = null;
+            changesSinceCompressed = new BlockChangeBuffer(map);
+            compressing = false;
+            changesSinceCompressStart = new BlockChangeBuffer(map);
+            waitingClients = new ArrayList<>();
+        }
+
+        void recordChange(int x, int y, int z, byte blockId) {
+            if (data != null) {
+                changesSinceCompressed.add(x, y, z, blockId);
+                if (changesSinceCompressed.size() > MAX_RECORDED_CHANGES) {
+                    data = null;
+                    changesSinceCompressed.clear();
+                }
+            }
+
+            if (compressing)
+                changesSinceCompressStart.add(x, y, z, blockId);
+        }
+    }
+
+    private final GameServer server;
+    private final ExecutorService compressExecutor;
+    private final short sizeX, sizeY, sizeZ;
+
+    private final CompressedLevel gzipLevel;
+    private final CompressedLevel deflateLevel;
+    // Clients currently being sent the level data
+    private final List<LevelTransfer> activeTransfers;
+
+    /**
+     * @param server server the level belongs to
+     * @param map map of the level
+     */
+    public LevelDataCache(GameServer server, BlockMap map) {
+        this.server = server;
+        compressExecutor = Executors.newSingleThreadExecutor((r) -> {
+            Thread thread = new Thread(r, "Level Compression");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sizeX = (short) map.getBlocksX();
+        sizeY = (short) map.getBlocksY();
+        sizeZ = (short) map.getBlocksZ();
+
+        gzipLevel = new CompressedLevel(false, map);
+        deflateLevel = new CompressedLevel(true, map);
+        activeTransfers = new ArrayList<>();
+    }
+
+    /**
+     * Records that a block in the level was changed.
+     *
+     * @param x x coordinate of block
+     * @param y y coordinate of block
+     * @param z z coordinate of block
+     * @param blockId new ID of the block
+     */
+    public void recordChange(int x, int y, int z, byte blockId) {
+        gzipLevel.recordChange(x, y, z, blockId);
+        deflateLevel.recordChange(x, y, z, blockId);
+
+        for (LevelTransfer transfer : activeTransfers) {
+            transfer.getPendingChanges().add(x, y, z, blockId);
+        }
+    }
+
+    /**
+     * Sends the level to a client. If the level isn't compressed yet in the
+     * format the client needs, it is sent once compression finishes.
+     *
+     * @param client client to send the level to
+     */
+    public void sendLevel(ClientConnection client) {
+        CompressedLevel level = client.getExtensions().fastMap ? deflateLevel : gzipLevel;
+        if (level.data != null) {
+            sendLevelData(client, level);
+            return;
+        }
+
+        level.waitingClients.add(client);
+        startCompressing(level);
+    }
+
+    /**
+     * Stops sending the level to a client. This should be called when the
+     * client disconnects.
+     *
+     * @param client client to stop sending to
+     */
+    public void removeClient(ClientConnection client) {
+        gzipLevel.waitingClients.remove(client);
+        deflateLevel.waitingClients.remove(client);
+        activeTransfers.removeIf((transfer) -> transfer.getClient() == client);
+    }
+
+    /**
+     * Starts compressing the level in the background in the FastMap format,
+     * if it isn't already compressed or being compressed. VoxelGame clients
+     * use FastMap, so this lets them join quickly. The classic format is
+     * only compressed once a client without FastMap joins.
+     */
+    public void startCompressing() {
+        startCompressing(deflateLevel);
+    }
+
+    private void startCompressing(CompressedLevel level) {
+        if (level.compressing || level.data != null)
+            return;
+
+        level.compressing = true;
+        level.changesSinceCompressStart.clear();
+
+        BlockMap snapshot = server.getMapSnapshot();
+        CompletableFuture.supplyAsync(() -> compress(snapshot, level.fastMap), compressExecutor)
+                .whenComplete((data, error) -> server.runOnTickThread(() -> finishCompressing(level, data, error)));
+    }
+
+    private void finishCompressing(CompressedLevel level, byte[] data, Throwable error) {
+        level.compressing = false;
+        if (error != null) {
+            System.err.println("Failed to compress level data");
+            error.printStackTrace();
+            for (ClientConnection client : level.waitingClients) {
+                client.kick("Failed to send level");
+            }
+            level.waitingClients.clear();
+            return;
+        }
+
+        level.data = data;
+        level.changesSinceCompressed.clear();
+        level.changesSinceCompressed.addAll(level.changesSinceCompressStart);
+
+        for (ClientConnection client : level.waitingClients) {
+            if (client.isConnected())
+                sendLevelData(client, level);
+        }
+        level.waitingClients.clear();
+    }
+
+    private void sendLevelData(ClientConnection client, CompressedLevel level) {
+        // Client needs the changes since compression along with any made
+        // while sending
+        BlockChangeBuffer pendingChanges = new BlockChangeBuffer(level.changesSinceCompressed);
+
+        LevelTransfer transfer = new LevelTransfer(
+                client, level.data, level.fastMap, sizeX, sizeY, sizeZ, pendingChanges,
+                (t) -> server.runOnTickThread(() -> finishTransfer(t))
+        );
+        activeTransfers.add(transfer);
+        client.startLevelTransfer(transfer);
+    }
+
+    private void finishTransfer(LevelTransfer transfer) {
+        // Client disconnected while sending
+        if (!activeTransfers.remove(transfer))
+            return;
+
+        ClientConnection client = transfer.getClient();
+        transfer.getPendingChanges().sendTo(client);
+        client.onLevelSent();
+    }
+
+    private static byte[] compress(BlockMap map, boolean fastMap) {
+        try {
+            return fastMap ? compressDeflate(map) : compressGZIP(map);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to compress level data", e);
+        }
+    }
+
+    private static byte[] compressGZIP(BlockMap map) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(b, 8192))) {
+            out.writeInt(map.getBlocksX() * map.getBlocksY() * map.getBlocksZ());
+            map.writeBlockData(out);
+        }
+        return b.toByteArray();
+    }
+
+    private static byte[] compressDeflate(BlockMap map) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(b, deflater, 8192)) {
+            map.writeBlockData(out);
+        } finally {
+            // Not ended by the stream since it was passed in
+            deflater.end();
+        }
+        return b.toByteArray();
+    }
+
+    /**
+     * Stops the background compression thread.
+     */
+    public void close() {
+        compressExecutor.shutdownNow();
+    }
+}
@@ -1,42 +1,570 @@
 package com.github.rmheuer.voxel.server;
 
-import com.github.rmheuer.azalea.math.MathUtil;
 import com.github.rmheuer.voxel.block.Blocks;
 import com.github.rmheuer.voxel.level.BlockMap;
+import com.github.rmheuer.voxel.level.MapSection;
 
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Generates the terrain for new levels, in a similar way to Minecraft
+ * Classic. Terrain is generated in stages: heightmap, strata, caves, ores,
+ * water, then trees and flowers.
+ * <p>
+ * Each section column is generated separately on the common fork/join pool,
+ * directly into the block data for its sections. Features that cross column
+ * borders, like caves and trees, are placed by every column they reach, using
+ * random numbers seeded only by the column they start in. This way the level
+ * only depends on the seed, and not on how many threads generated it.
+ */
 public final class LevelGenerator {
-    private static int getHeight(int x, int z, int size) {
-        double dist = Math.sqrt(MathUtil.square(x - size/2f) + MathUtil.square(z - size/2f));
-        double scaled = Math.min(dist / (size / 2.0), 1) * Math.PI;
+    private static final int SIZE = MapSection.SIZE;
+
+    // Random number streams for each stage, so they don't affect each other
+    private static final int SALT_CAVES = 1;
+    private static final int SALT_ORES = 2;
+    private static final int SALT_TREES = 3;
+    private static final int SALT_FLOWERS = 4;
+
+    // Caves are limited in length so columns don't need to check too many
+    // other columns for caves that reach them
+    private static final int MAX_CAVE_LENGTH = 96;
+    private static final float MAX_CAVE_RADIUS = 1.2f + 4.5f + 1;
+    private static final int CAVE_REACH_COLUMNS = (int) Math.ceil((MAX_CAVE_LENGTH + MAX_CAVE_RADIUS) / SIZE);
+    // Average number of caves starting in each column per block of height
+    private static final float CAVES_PER_BLOCK_HEIGHT = 1 / 32.0f;
+
+    private static final int MAX_ORE_LENGTH = 24;
+    private static final float MAX_ORE_RADIUS = 3;
+    private static final int ORE_REACH_COLUMNS = (int) Math.ceil((MAX_ORE_LENGTH + MAX_ORE_RADIUS) / SIZE);
+
+    // Leaves reach 2 blocks from the trunk
+    private static final int TREE_REACH_COLUMNS = 1;
+    private static final int MAX_TREES_PER_COLUMN = 6;
+    private static final int FLOWER_CHANCE = 64;
+
+    private static final class OreType {
+        final byte blockId;
+        // Average veins starting in each column per block of height
+        final float veinsPerBlockHeight;
+        final float radius;
+
+        OreType(byte blockId, float veinsPerBlockHeight, float radius) {
+            this.blockId = blockId;
+            this.veinsPerBlockHeight = veinsPerBlockHeight;
+            this.radius = radius;
+        }
+    }
+
+    private static final OreType[] ORES = {
+            new OreType(Blocks.ID_COAL_ORE, 0.9f / 64, 2.2f),
+            new OreType(Blocks.ID_IRON_ORE, 0.7f / 64, 1.8f),
+            new OreType(Blocks.ID_GOLD_ORE, 0.5f / 64, 1.4f)
+    };
+
+    // Ken Perlin's improved noise, in two dimensions
+    private static final class PerlinNoise {
+        private final int[] p;
+
+        PerlinNoise(Random random) {
+            p = new int[512];
+            for (int i = 0; i < 256; i++) {
+                p[i] = i;
+            }
+            for (int i = 0; i < 256; i++) {
+                int j = random.nextInt(256 - i) + i;
+                int tmp = p[i];
+                p[i] = p[j];
+                p[j] = tmp;
+                p[i + 256] = p[i];
+            }
+        }
+
+        private static double fade(double t) {
+            return t * t * t * (t * (t * 6 - 15) + 10);
+        }
+
+        private static double lerp(double t, double a, double b) {
+            return a + t * (b - a);
+        }
+
+        private static double grad(int hash, double x, double y) {
+            int h = hash & 15;
+            double u = h < 8 ? x : y;
+            double v = h < 4 ? y : (h == 12 || h == 14 ? x : 0);
+            return ((h & 1) == 0 ? u : -u) + ((h & 2) == 0 ? v : -v);
+        }
+
+        double compute(double x, double y) {
+            double xFloor = Math.floor(x);
+            double yFloor = Math.floor(y);
+            int cellX = (int) xFloor & 255;
+            int cellY = (int) yFloor & 255;
+            x -= xFloor;
+            y -= yFloor;
+
+            double u = fade(x);
+            double v = fade(y);
+            int a = p[cellX] + cellY;
+            int b = p[cellX + 1] + cellY;
+
+            return lerp(v,
+                    lerp(u, grad(p[a], x, y), grad(p[b], x - 1, y)),
+                    lerp(u, grad(p[a + 1], x, y - 1), grad(p[b + 1], x - 1, y - 1)));
+        }
+    }
+
+    // Sum of multiple layers of noise, each with double the amplitude and
+    // half the frequency of the previous
+    private static final class OctaveNoise {
+        private final PerlinNoise[] octaves;
+
+        OctaveNoise(Random random, int octaveCount) {
+            octaves = new PerlinNoise[octaveCount];
+            for (int i = 0; i < octaveCount; i++) {
+                octaves[i] = new PerlinNoise(random);
+            }
+        }
+
+        double compute(double x, double y) {
+            double amplitude = 1;
+            double frequency = 1;
+            double sum = 0;
+            for (PerlinNoise octave : octaves) {
+                sum += octave.compute(x * frequency, y * frequency) * amplitude;
+                amplitude *= 2;
+                frequency /= 2;
+            }
+            return sum;
+        }
+    }
+
+    private final long seed;
+    private final int sectionsX, sectionsY, sectionsZ;
+    private final int blocksY;
+    private final int waterLevel;
+
+    private final OctaveNoise heightLow1, heightLow2;
+    private final OctaveNoise heightHigh1, heightHigh2;
+    private final OctaveNoise heightSelect;
+    private final OctaveNoise strataNoise;
+    private final OctaveNoise sandNoise, gravelNoise;
+    private final OctaveNoise treeNoise;
+
+    // Spheres carved out by the caves starting in each column, stored as
+    // x, y, z, radius
+    private final float[][] caveSpheres;
+
+    private LevelGenerator(int sectionsX, int sectionsY, int sectionsZ, long seed) {
+        this.seed = seed;
+        this.sectionsX = sectionsX;
+        this.sectionsY = sectionsY;
+        this.sectionsZ = sectionsZ;
+        blocksY = sectionsY * SIZE;
+        waterLevel = blocksY / 2;
+
+        Random random = new Random(seed);
+        heightLow1 = new OctaveNoise(random, 8);
+        heightLow2 = new OctaveNoise(random, 8);
+        heightHigh1 = new OctaveNoise(random, 8);
+        heightHigh2 = new OctaveNoise(random, 8);
+        heightSelect = new OctaveNoise(random, 6);
+        strataNoise = new OctaveNoise(random, 8);
+        sandNoise = new OctaveNoise(random, 8);
+        gravelNoise = new OctaveNoise(random, 8);
+        treeNoise = new OctaveNoise(random, 8);
+
+        caveSpheres = new float[sectionsX * sectionsZ][];
+    }
+
+    /**
+     * Generates a new level.
+     *
+     * @param sectionsX number of sections along the X axis
+     * @param sectionsY number of sections along the Y axis
+     * @param sectionsZ number of sections along the Z axis
+     * @param seed seed for the random terrain
+     * @return generated level
+     */
+    public static BlockMap generateLevel(int sectionsX, int sectionsY, int sectionsZ, long seed) {
+        System.out.println("Generating level with seed " + seed);
+        long before = System.nanoTime();
+
+        LevelGenerator generator = new LevelGenerator(sectionsX, sectionsY, sectionsZ, seed);
+        MapSection[] sections = generator.generate();
+        BlockMap map = new BlockMap(sectionsX, sectionsY, sectionsZ, (index) -> sections[index]);
+
+        long after = System.nanoTime();
+        System.out.println("Level generation took " + ((after - before) / 1_000_000.0) + " ms");
+
+        return map;
+    }
+
+    private MapSection[] generate() {
+        int columnCount = sectionsX * sectionsZ;
+
+        // Cave paths are found first, since each one is carved into many
+        // columns
+        IntStream.range(0, columnCount).parallel().forEach((column) ->
+                caveSpheres[column] = planCaves(column % sectionsX, column / sectionsX));
+
+        MapSection[] sections = new MapSection[columnCount * sectionsY];
+        IntStream.range(0, columnCount).parallel().forEach((column) ->
+                generateColumn(column % sectionsX, column / sectionsX, sections));
+        return sections;
+    }
+
+    // Gets random numbers for one stage within one column
+    private Random columnRandom(int columnX, int columnZ, int salt) {
+        return new Random(seed
+                ^ (columnX * 341873128712L + columnZ * 132897987541L + salt * 0x9E3779B97F4A7C15L));
+    }
+
+    // Gets a random count that is on average the specified amount
+    private static int randomCount(Random random, float average) {
+        return (int) (random.nextFloat() * 2 * average + 0.5f);
+    }
+
+    private void generateColumn(int columnX, int columnZ, MapSection[] sections) {
+        int baseX = columnX * SIZE;
+        int baseZ = columnZ * SIZE;
+
+        // Same layout as MapSection, with the sections stacked on top of
+        // each other
+        byte[] blocks = new byte[SIZE * SIZE * blocksY];
+        int[] heights = new int[SIZE * SIZE];
+        for (int z = 0; z < SIZE; z++) {
+            for (int x = 0; x < SIZE; x++) {
+                heights[x + z * SIZE] = getHeight(baseX + x, baseZ + z);
+            }
+        }
+
+        generateStrata(baseX, baseZ, heights, blocks);
+        carveCaves(columnX, columnZ, blocks);
+        placeOres(columnX, columnZ, blocks);
+        floodWater(heights, blocks);
+        placeTrees(columnX, columnZ, blocks);
+        placeFlowers(columnX, columnZ, heights, blocks);
+
+        for (int sectionY = 0; sectionY < sectionsY; sectionY++) {
+            int start = sectionY * MapSection.SIZE_CUBED;
+            byte[] sectionData = Arrays.copyOfRange(blocks, start, start + MapSection.SIZE_CUBED);
+
+            // Uniform sections are replaced with the shared instance to save
+            // memory
+            MapSection section = new MapSection(sectionData);
+            if (section.isUniform())
+                section = MapSection.uniform(sectionData[0]);
+
+            sections[columnX + columnZ * sectionsX + sectionY * sectionsX * sectionsZ] = section;
+        }
+    }
+
+    private static int blockIndex(int x, int y, int z) {
+        return x + z * SIZE + y * SIZE * SIZE;
+    }
+
+    // Gets the number of solid blocks in the column at a position, before
+    // caves are carved
+    private int getHeight(int x, int z) {
+        double noiseX = x * 1.3;
+        double noiseZ = z * 1.3;
+
+        double low = heightLow1.compute(noiseX + heightLow2.compute(noiseX, noiseZ), noiseZ) / 6 - 4;
+        double high = heightHigh1.compute(noiseX + heightHigh2.compute(noiseX, noiseZ), noiseZ) / 5 + 6;
+
+        double height = heightSelect.compute(x, z) / 8 > 0 ? low : Math.max(low, high);
+        height /= 2;
+        if (height < 0)
+            height *= 0.8;
+
+        return Math.max(1, Math.min((int) height + waterLevel, blocksY - 1));
+    }
+
+    // Gets the block on top of the terrain at a position
+    private byte getSurfaceBlock(int x, int z, int height) {
+        int top = height - 1;
+        if (top >= waterLevel - 1) {
+            if (top <= waterLevel + 1 && sandNoise.compute(x, z) > 8)
+                return Blocks.ID_SAND;
+            return Blocks.ID_GRASS;
+        }
+
+        // Under water
+        if (gravelNoise.compute(x, z) > 12)
+            return Blocks.ID_GRAVEL;
+        if (sandNoise.compute(x, z) > 8)
+            return Blocks.ID_SAND;
+        return Blocks.ID_DIRT;
+    }
 
-        return (int) (32 + Math.cos(scaled) * 6 + Math.sin(scaled * 6.87) * 2);
+    // Fills in the terrain with bedrock, stone, dirt, and the surface
+    private void generateStrata(int baseX, int baseZ, int[] heights, byte[] blocks) {
+        for (int z = 0; z < SIZE; z++) {
+            for (int x = 0; x < SIZE; x++) {
+                int height = heights[x + z * SIZE];
+                int stoneTop = height + (int) (strataNoise.compute(baseX + x, baseZ + z) / 24) - 4;
+
+                blocks[blockIndex(x, 0, z)] = Blocks.ID_BEDROCK;
+                for (int y = 1; y < height - 1; y++) {
+                    blocks[blockIndex(x, y, z)] = y <= stoneTop ? Blocks.ID_STONE : Blocks.ID_DIRT;
+                }
+                if (height > 1)
+                    blocks[blockIndex(x, height - 1, z)] = getSurfaceBlock(baseX + x, baseZ + z, height);
+            }
+        }
     }
 
-    public static BlockMap generateLevel(int sectionsXZ) {
-        BlockMap map = new BlockMap(sectionsXZ, 4, sectionsXZ);
+    // Finds the spheres carved by the caves starting in a column
+    private float[] planCaves(int columnX, int columnZ) {
+        Random random = columnRandom(columnX, columnZ, SALT_CAVES);
+        float[] spheres = new float[64];
+        int count = 0;
+
+        int caveCount = randomCount(random, blocksY * CAVES_PER_BLOCK_HEIGHT);
+        for (int cave = 0; cave < caveCount; cave++) {
+            float x = columnX * SIZE + random.nextFloat() * SIZE;
+            float y = random.nextFloat() * blocksY;
+            float z = columnZ * SIZE + random.nextFloat() * SIZE;
+            int length = (int) (random.nextFloat() * random.nextFloat() * MAX_CAVE_LENGTH);
+            float caveRadius = random.nextFloat() * random.nextFloat();
+
+            float theta = random.nextFloat() * (float) Math.PI * 2;
+            float deltaTheta = 0;
+            float phi = random.nextFloat() * (float) Math.PI * 2;
+            float deltaPhi = 0;
+
+            for (int step = 0; step < length; step++) {
+                x += (float) (Math.sin(theta) * Math.cos(phi));
+                z += (float) (Math.cos(theta) * Math.cos(phi));
+                y += (float) Math.sin(phi);
+
+                theta += deltaTheta * 0.2f;
+                deltaTheta = deltaTheta * 0.9f + random.nextFloat() - random.nextFloat();
+                phi = phi / 2 + deltaPhi / 4;
+                deltaPhi = deltaPhi * 0.75f + random.nextFloat() - random.nextFloat();
+
+                if (random.nextFloat() < 0.25f)
+                    continue;
+
+                float centerX = x + (random.nextFloat() * 4 - 2) * 0.2f;
+                float centerY = y + (random.nextFloat() * 4 - 2) * 0.2f;
+                float centerZ = z + (random.nextFloat() * 4 - 2) * 0.2f;
+
+                // Caves get narrower further up, and at the ends
+                float radius = (blocksY - centerY) / blocksY;
+                radius = 1.2f + (radius * 3.5f + 1) * caveRadius;
+                radius *= (float) Math.sin(step * Math.PI / length);
+                // Caves can wander below the level, which would make them
+                // wider than the columns that check for them expect
+                radius = Math.min(radius, MAX_CAVE_RADIUS);
+
+                if (count + 4 > spheres.length)
+                    spheres = Arrays.copyOf(spheres, spheres.length * 2);
+                spheres[count++] = centerX;
+                spheres[count++] = centerY;
+                spheres[count++] = centerZ;
+                spheres[count++] = radius;
+            }
+        }
+
+        return Arrays.copyOf(spheres, count);
+    }
 
-        for (int z = 0; z < map.getBlocksZ(); z++) {
-            for (int x = 0; x < map.getBlocksX(); x++) {
-                int height = getHeight(x, z, map.getBlocksX());
+    private void carveCaves(int columnX, int columnZ, byte[] blocks) {
+        int baseX = columnX * SIZE;
+        int baseZ = columnZ * SIZE;
 
-                for (int y = 0; y < height - 4; y++) {
-                    map.setBlockId(x, y, z, Blocks.ID_STONE);
+        // Always in the same order, so overlapping caves carve the same way
+        // in every column
+        for (int originZ = columnZ - CAVE_REACH_COLUMNS; originZ <= columnZ + CAVE_REACH_COLUMNS; originZ++) {
+            for (int originX = columnX - CAVE_REACH_COLUMNS; originX <= columnX + CAVE_REACH_COLUMNS; originX++) {
+                if (originX < 0 || originX >= sectionsX || originZ < 0 || originZ >= sectionsZ)
+                    continue;
+
+                float[] spheres = caveSpheres[originX + originZ * sectionsX];
+                for (int i = 0; i < spheres.length; i += 4) {
+                    fillSphere(blocks, baseX, baseZ, spheres[i], spheres[i + 1], spheres[i + 2], spheres[i + 3], Blocks.ID_STONE, Blocks.ID_AIR);
                 }
-                for (int y = height - 4; y < height - 1; y++) {
-                    map.setBlockId(x, y, z, Blocks.ID_DIRT);
+            }
+        }
+    }
+
+    // Replaces blocks within a slightly flattened sphere, only within the
+    // current column
+    private void fillSphere(byte[] blocks, int baseX, int baseZ, float centerX, float centerY, float centerZ, float radius, byte replace, byte blockId) {
+        int minX = Math.max((int) Math.floor(centerX - radius), baseX);
+        int maxX = Math.min((int) Math.ceil(centerX + radius), baseX + SIZE - 1);
+        int minZ = Math.max((int) Math.floor(centerZ - radius), baseZ);
+        int maxZ = Math.min((int) Math.ceil(centerZ + radius), baseZ + SIZE - 1);
+        if (minX > maxX || minZ > maxZ)
+            return;
+
+        // Never replace the bedrock floor
+        int minY = Math.max((int) Math.floor(centerY - radius), 1);
+        int maxY = Math.min((int) Math.ceil(centerY + radius), blocksY - 1);
+
+        float radiusSq = radius * radius;
+        for (int y = minY; y <= maxY; y++) {
+            float dy = (y + 0.5f - centerY) * 2;
+            for (int z = minZ; z <= maxZ; z++) {
+                float dz = z + 0.5f - centerZ;
+                for (int x = minX; x <= maxX; x++) {
+                    float dx = x + 0.5f - centerX;
+                    if (dx * dx + dy * dy + dz * dz >= radiusSq)
+                        continue;
+
+                    int index = blockIndex(x - baseX, y, z - baseZ);
+                    if (blocks[index] == replace)
+                        blocks[index] = blockId;
                 }
+            }
+        }
+    }
+
+    private void placeOres(int columnX, int columnZ, byte[] blocks) {
+        int baseX = columnX * SIZE;
+        int baseZ = columnZ * SIZE;
 
-                if (height < 32) {
-                    map.setBlockId(x, height - 1, z, Blocks.ID_DIRT);
-                    for (int y = height; y < 32; y++) {
-                        map.setBlockId(x, y, z, Blocks.ID_STILL_WATER);
+        for (int originZ = columnZ - ORE_REACH_COLUMNS; originZ <= columnZ + ORE_REACH_COLUMNS; originZ++) {
+            for (int originX = columnX - ORE_REACH_COLUMNS; originX <= columnX + ORE_REACH_COLUMNS; originX++) {
+                if (originX < 0 || originX >= sectionsX || originZ < 0 || originZ >= sectionsZ)
+                    continue;
+
+                Random random = columnRandom(originX, originZ, SALT_ORES);
+                for (OreType ore : ORES) {
+                    int veinCount = randomCount(random, blocksY * ore.veinsPerBlockHeight);
+                    for (int vein = 0; vein < veinCount; vein++) {
+                        placeOreVein(blocks, baseX, baseZ, originX, originZ, ore, random);
                     }
-                } else {
-                    map.setBlockId(x, height - 1, z, Blocks.ID_GRASS);
                 }
             }
         }
+    }
 
-        return map;
+    private void placeOreVein(byte[] blocks, int baseX, int baseZ, int originX, int originZ, OreType ore, Random random) {
+        float x = originX * SIZE + random.nextFloat() * SIZE;
+        float y = random.nextFloat() * blocksY;
+        float z = originZ * SIZE + random.nextFloat() * SIZE;
+        int length = (int) (random.nextFloat() * random.nextFloat() * MAX_ORE_LENGTH);
+
+        float theta = random.nextFloat() * (float) Math.PI * 2;
+        float deltaTheta = 0;
+        float phi = random.nextFloat() * (float) Math.PI * 2;
+        float deltaPhi = 0;
+
+        for (int step = 0; step < length; step++) {
+            x += (float) (Math.sin(theta) * Math.cos(phi));
+            z += (float) (Math.cos(theta) * Math.cos(phi));
+            y += (float) Math.sin(phi);
+
+            theta += deltaTheta * 0.2f;
+            deltaTheta = deltaTheta * 0.9f + random.nextFloat() - random.nextFloat();
+            phi = phi / 2 + deltaPhi / 4;
+            deltaPhi = deltaPhi * 0.9f + random.nextFloat() - random.nextFloat();
+
+            float radius = ore.radius * (float) Math.sin(step * Math.PI / length) + 1;
+            fillSphere(blocks, baseX, baseZ, x, y, z, radius, Blocks.ID_STONE, ore.blockId);
+        }
+    }
+
+    // Fills the space between the terrain and the water level with water.
+    // Caves are not flooded, since they are below the terrain
+    private void floodWater(int[] heights, byte[] blocks) {
+        for (int z = 0; z < SIZE; z++) {
+            for (int x = 0; x < SIZE; x++) {
+                for (int y = heights[x + z * SIZE]; y < waterLevel; y++) {
+                    int index = blockIndex(x, y, z);
+                    if (blocks[index] == Blocks.ID_AIR)
+                        blocks[index] = Blocks.ID_STILL_WATER;
+                }
+            }
+        }
+    }
+
+    private void placeTrees(int columnX, int columnZ, byte[] blocks) {
+        int baseX = columnX * SIZE;
+        int baseZ = columnZ * SIZE;
+
+        for (int originZ = columnZ - TREE_REACH_COLUMNS; originZ <= columnZ + TREE_REACH_COLUMNS; originZ++) {
+            for (int originX = columnX - TREE_REACH_COLUMNS; originX <= columnX + TREE_REACH_COLUMNS; originX++) {
+                if (originX < 0 || originX >= sectionsX || originZ < 0 || originZ >= sectionsZ)
+                    continue;
+
+                Random random = columnRandom(originX, originZ, SALT_TREES);
+                double density = treeNoise.compute(originX * SIZE + SIZE / 2.0, originZ * SIZE + SIZE / 2.0) / 64;
+                int treeCount = (int) Math.max(0, Math.min(density * MAX_TREES_PER_COLUMN, MAX_TREES_PER_COLUMN));
+
+                for (int tree = 0; tree < treeCount; tree++) {
+                    placeTree(blocks, baseX, baseZ, originX, originZ, random);
+                }
+            }
+        }
+    }
+
+    private void placeTree(byte[] blocks, int baseX, int baseZ, int originX, int originZ, Random random) {
+        int treeX = originX * SIZE + random.nextInt(SIZE);
+        int treeZ = originZ * SIZE + random.nextInt(SIZE);
+        int trunkHeight = random.nextInt(3) + 4;
+        // Which leaf corners are removed, chosen before checking whether the
+        // tree is placed so every column uses the same random numbers
+        int cornerMask = random.nextInt(16);
+
+        // Caves, ores, and water never replace the surface block, so the
+        // heightmap is enough to find where trees can grow
+        int height = getHeight(treeX, treeZ);
+        if (height + trunkHeight + 1 >= blocksY || getSurfaceBlock(treeX, treeZ, height) != Blocks.ID_GRASS)
+            return;
+
+        int top = height + trunkHeight;
+        for (int y = top - 3; y <= top; y++) {
+            int radius = y >= top - 1 ? 1 : 2;
+            for (int z = treeZ - radius; z <= treeZ + radius; z++) {
+                for (int x = treeX - radius; x <= treeX + radius; x++) {
+                    boolean corner = Math.abs(x - treeX) == radius && Math.abs(z - treeZ) == radius;
+                    if (corner && (y == top || (cornerMask & (1 << (top - 1 - y))) != 0))
+                        continue;
+
+                    setIfAir(blocks, baseX, baseZ, x, y, z, Blocks.ID_LEAVES);
+                }
+            }
+        }
+
+        if (treeX >= baseX && treeX < baseX + SIZE && treeZ >= baseZ && treeZ < baseZ + SIZE) {
+            for (int y = height; y < top; y++) {
+                blocks[blockIndex(treeX - baseX, y, treeZ - baseZ)] = Blocks.ID_LOG;
+            }
+        }
+    }
+
+    private void setIfAir(byte[] blocks, int baseX, int baseZ, int x, int y, int z, byte blockId) {
+        if (x < baseX || x >= baseX + SIZE || z < baseZ || z >= baseZ + SIZE)
+            return;
+
+        int index = blockIndex(x - baseX, y, z - baseZ);
+        if (blocks[index] == Blocks.ID_AIR)
+            blocks[index] = blockId;
+    }
+
+    private void placeFlowers(int columnX, int columnZ, int[] heights, byte[] blocks) {
+        Random random = columnRandom(columnX, columnZ, SALT_FLOWERS);
+        byte flowerId = random.nextBoolean() ? Blocks.ID_YELLOW_FLOWER : Blocks.ID_RED_FLOWER;
+
+        for (int z = 0; z < SIZE; z++) {
+            for (int x = 0; x < SIZE; x++) {
+                if (random.nextInt(FLOWER_CHANCE) != 0)
+                    continue;
+
+                int height = heights[x + z * SIZE];
+                if (height >= blocksY || blocks[blockIndex(x, height - 1, z)] != Blocks.ID_GRASS)
+                    continue;
+
+                int index = blockIndex(x, height, z);
+                if (blocks[index] == Blocks.ID_AIR)
+                    blocks[index] = flowerId;
+            }
+        }
     }
 }
@@ -0,0 +1,314 @@
+package com.github.rmheuer.voxel.server;
+
+import com.github.rmheuer.voxel.level.BlockMap;
+import com.github.rmheuer.voxel.level.MapSection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only log of modified sections, stored next to the level file. Saving
+ * only the sections that changed is much cheaper than writing the whole
+ * level, so the level can be saved often. The journal is folded back into the
+ * level file by saving the whole level, which starts a new journal.
+ * <p>
+ * Each journal belongs to one save of the level file, identified by an ID
+ * stored in both files, so a journal left over from an older save of the
+ * level is never replayed. Sections are appended in batches, and a batch is
+ * only replayed if all of it was written.
+ * <p>
+ * This is not thread-safe, and should only be used by one thread at a time.
+ */
+public final class LevelJournal {
+    private static final int MAGIC = 0x564A524E; // "VJRN"
+    private static final int VERSION = 1;
+    // Magic, version, ID, and section counts
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 3 * 2;
+
+    private static final byte RECORD_SECTION = 1;
+    private static final byte RECORD_COMMIT = 2;
+    // Length and CRC of the record payload
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+
+    // The journal is compacted once it is larger than the level file, but
+    // small journals are kept regardless
+    private static final long MIN_COMPACT_SIZE = 1024 * 1024;
+
+    private static final class SectionRecord {
+        final int x, y, z;
+        final byte[] blockData;
+
+        SectionRecord(int x, int y, int z, byte[] blockData) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.blockData = blockData;
+        }
+    }
+
+    private final Path path;
+    private final Path levelPath;
+
+    // Open journal, or null if there is no journal for the current level file
+    private FileChannel channel;
+    private long levelFileSize;
+
+    /**
+     * @param levelFileName name of the level file the journal belongs to
+     */
+    public LevelJournal(String levelFileName) {
+        path = Paths.get(levelFileName + ".journal");
+        levelPath = Paths.get(levelFileName);
+        channel = null;
+    }
+
+    /**
+     * Applies the sections stored in the journal to a map. This should be
+     * done after loading the level file. If the journal doesn't belong to the
+     * level file, nothing is applied. Incomplete data at the end of the
+     * journal, left by a crash while appending, is removed.
+     *
+     * @param journalId journal ID stored in the level file
+     * @param map map loaded from the level file
+     * @return whether the journal belongs to the level file. If not, the
+     *         whole level must be saved before sections can be appended
+     * @throws IOException if an I/O error occurs
+     */
+    public boolean replay(long journalId, BlockMap map) throws IOException {
+        close();
+
+        byte[] data;
+        try {
+            data = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        if (buf.remaining() < HEADER_SIZE)
+            return false;
+        if (buf.getInt() != MAGIC || buf.getInt() != VERSION || buf.getLong() != journalId)
+            return false;
+        if (buf.getShort() != map.getSectionsX() || buf.getShort() != map.getSectionsY() || buf.getShort() != map.getSectionsZ())
+            return false;
+
+        List<SectionRecord> batch = new ArrayList<>();
+        int validEnd = buf.position();
+        int sectionCount = 0;
+
+        Inflater inflater = new Inflater(true);
+        try {
+            CRC32 crc = new CRC32();
+            while (buf.remaining() >= RECORD_HEADER_SIZE) {
+                int length = buf.getInt();
+                int expectedCrc = buf.getInt();
+                if (length <= 0 || length > buf.remaining())
+                    break;
+
+                crc.reset();
+                crc.update(data, buf.position(), length);
+                if ((int) crc.getValue() != expectedCrc)
+                    break;
+
+                ByteBuffer payload = buf.slice();
+                payload.limit(length);
+                buf.position(buf.position() + length);
+
+                byte type = payload.get();
+                if (type == RECORD_COMMIT) {
+                    for (SectionRecord record : batch) {
+                        map.setSectionData(record.x, record.y, record.z, record.blockData);
+                    }
+                    sectionCount += batch.size();
+                    batch.clear();
+                    validEnd = buf.position();
+                } else if (type == RECORD_SECTION) {
+                    batch.add(readSection(payload, inflater));
+                } else {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            // Valid CRC but invalid data, treat it like a torn write
+        } finally {
+            inflater.end();
+        }
+
+        if (sectionCount > 0)
+            System.out.println("Replayed " + sectionCount + " sections from level journal");
+
+        channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        channel.truncate(validEnd);
+        channel.position(validEnd);
+        levelFileSize = Files.size(levelPath);
+        return true;
+    }
+
+    private SectionRecord readSection(ByteBuffer payload, Inflater inflater) throws DataFormatException {
+        int x = payload.getShort();
+        int y = payload.getShort();
+        int z = payload.getShort();
+
+        byte[] blockData = new byte[MapSection.SIZE_CUBED];
+        inflater.reset();
+        inflater.setInput(payload);
+        if (inflater.inflate(blockData) != blockData.length)
+            throw new DataFormatException("Wrong section data size");
+
+        return new SectionRecord(x, y, z, blockData);
+    }
+
+    /**
+     * Appends the contents of sections to the journal, and waits for them to
+     * be written to disk.
+     *
+     * @param map map to get the sections from
+     * @param sections indices of sections to append, as given by
+     *                 {@link BlockMap#takeDirtySections()}
+     * @return number of bytes appended
+     * @throws IOException if an I/O error occurs
+     */
+    public long append(BlockMap map, BitSet sections) throws IOException {
+        if (channel == null)
+            throw new IllegalStateException("Journal does not belong to the current level file");
+
+        int sectionsX = map.getSectionsX();
+        int sectionsZ = map.getSectionsZ();
+
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        byte[] blockData = new byte[MapSection.SIZE_CUBED];
+        byte[] compressed = new byte[MapSection.SIZE_CUBED * 2];
+
+        // Journal writes happen often, so favor speed over size
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            for (int i = sections.nextSetBit(0); i >= 0; i = sections.nextSetBit(i + 1)) {
+                int x = i % sectionsX;
+                int z = (i / sectionsX) % sectionsZ;
+                int y = i / sectionsX / sectionsZ;
+                map.getSection(x, y, z).unpackBlockData(blockData);
+
+                deflater.reset();
+                deflater.setInput(blockData);
+                deflater.finish();
+                int compressedLen = deflater.deflate(compressed);
+                if (!deflater.finished())
+                    throw new IOException("Compressed section is too large");
+
+                payload.reset();
+                DataOutputStream out = new DataOutputStream(payload);
+                out.writeByte(RECORD_SECTION);
+                out.writeShort(x);
+                out.writeShort(y);
+                out.writeShort(z);
+                out.write(compressed, 0, compressedLen);
+                writeRecord(batch, payload);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        payload.reset();
+        payload.write(RECORD_COMMIT);
+        writeRecord(batch, payload);
+
+        ByteBuffer buf = ByteBuffer.wrap(batch.toByteArray());
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        channel.force(false);
+
+        return buf.capacity();
+    }
+
+    private void writeRecord(ByteArrayOutputStream batch, ByteArrayOutputStream payload) throws IOException {
+        byte[] data = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        DataOutputStream out = new DataOutputStream(batch);
+        out.writeInt(data.length);
+        out.writeInt((int) crc.getValue());
+        out.write(data);
+    }
+
+    /**
+     * Starts a new empty journal. This should be called after the whole level
+     * has been saved.
+     *
+     * @param journalId journal ID that was stored in the level file
+     * @param map map that was saved
+     * @throws IOException if an I/O error occurs
+     */
+    public void reset(long journalId, BlockMap map) throws IOException {
+        close();
+
+        FileChannel newChannel = FileChannel.open(path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        boolean success = false;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(journalId);
+            header.putShort((short) map.getSectionsX());
+            header.putShort((short) map.getSectionsY());
+            header.putShort((short) map.getSectionsZ());
+            header.flip();
+            while (header.hasRemaining()) {
+                newChannel.write(header);
+            }
+            newChannel.force(false);
+            success = true;
+        } finally {
+            if (!success)
+                newChannel.close();
+        }
+
+        channel = newChannel;
+        levelFileSize = Files.size(levelPath);
+    }
+
+    /**
+     * Gets whether the journal has grown large enough that the whole level
+     * should be saved instead of appending to it.
+     *
+     * @return whether the journal should be compacted
+     * @throws IOException if an I/O error occurs
+     */
+    public boolean needsCompaction() throws IOException {
+        if (channel == null)
+            return true;
+        return channel.size() > Math.max(MIN_COMPACT_SIZE, levelFileSize);
+    }
+
+    /**
+     * Closes the journal file.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.github.rmheuer.voxel.server;
+
+import com.github.rmheuer.voxel.level.BlockMap;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Saves the level on a single background thread. Autosaves append the
+ * modified sections to the level journal, and the whole level is saved when
+ * the journal needs to be compacted. If an autosave is requested while
+ * another is still waiting to run, the two are combined into one save, so
+ * saves can't pile up if the disk is slow.
+ * <p>
+ * Each save is given its own copy of the level properties, since the server
+ * keeps modifying them while the save runs.
+ */
+public final class LevelSaver {
+    /** Statistics about the saves done so far */
+    public static final class Stats {
+        public final long saveCount;
+        public final long fullSaveCount;
+        public final long combinedSaveCount;
+        public final long totalBytesWritten;
+        public final long totalSaveMillis;
+        public final long lastSaveMillis;
+        public final long lastSaveBytes;
+
+        public Stats(long saveCount, long fullSaveCount, long combinedSaveCount, long totalBytesWritten, long totalSaveMillis, long lastSaveMillis, long lastSaveBytes) {
+            this.saveCount = saveCount;
+            this.fullSaveCount = fullSaveCount;
+            this.combinedSaveCount = combinedSaveCount;
+            this.totalBytesWritten = totalBytesWritten;
+            this.totalSaveMillis = totalSaveMillis;
+            this.lastSaveMillis = lastSaveMillis;
+            this.lastSaveBytes = lastSaveBytes;
+        }
+    }
+
+    private static final class PendingSave {
+        ClassicWorldFile info;
+        BlockMap snapshot;
+        final BitSet dirtySections;
+
+        PendingSave(ClassicWorldFile info, BlockMap snapshot, BitSet dirtySections) {
+            this.info = info;
+            this.snapshot = snapshot;
+            this.dirtySections = dirtySections;
+        }
+    }
+
+    private final String levelFileName;
+    private final LevelJournal journal;
+    private final ExecutorService saveExecutor;
+    private final Random journalIdRandom;
+
+    // Only accessed from the save thread, other than in the constructor
+    private boolean needsFullSave;
+
+    // Autosave waiting to run, guarded by this
+    private PendingSave pendingSave;
+
+    private final AtomicLong saveCount, fullSaveCount, combinedSaveCount;
+    private final AtomicLong totalBytesWritten, totalSaveNanos;
+    private volatile long lastSaveNanos, lastSaveBytes;
+
+    /**
+     * Creates the saver, and applies any sections saved in the level journal
+     * to the map.
+     *
+     * @param levelFileName name of the level file
+     * @param levelFile level file the map was loaded from
+     * @param map map loaded from the level file
+     * @throws IOException if the journal fails to load
+     */
+    public LevelSaver(String levelFileName, ClassicWorldFile levelFile, BlockMap map) throws IOException {
+        this.levelFileName = levelFileName;
+        journal = new LevelJournal(levelFileName);
+        saveExecutor = Executors.newSingleThreadExecutor((r) -> new Thread(r, "Level Saver"));
+        journalIdRandom = new Random();
+
+        Long journalId = levelFile.getJournalId();
+        // Sections can't be appended to the journal until there is a journal
+        // that belongs to the level file
+        needsFullSave = journalId == null || !journal.replay(journalId, map);
+
+        pendingSave = null;
+
+        saveCount = new AtomicLong();
+        fullSaveCount = new AtomicLong();
+        combinedSaveCount = new AtomicLong();
+        totalBytesWritten = new AtomicLong();
+        totalSaveNanos = new AtomicLong();
+    }
+
+    /**
+     * Saves the level in the background. If the previous autosave hasn't
+     * started yet, it is combined with this one.
+     *
+     * @param info copy of the level properties to save
+     * @param snapshot snapshot of the map to save
+     * @param dirtySections sections modified since the previous autosave
+     */
+    public void autosave(ClassicWorldFile info, BlockMap snapshot, BitSet dirtySections) {
+        synchronized (this) {
+            if (pendingSave != null) {
+                // The newer snapshot includes all the changes from the older
+                pendingSave.info = info;
+                pendingSave.snapshot = snapshot;
+                pendingSave.dirtySections.or(dirtySections);
+                combinedSaveCount.incrementAndGet();
+                System.err.println("Level saving is falling behind, combining autosaves");
+                return;
+            }
+            pendingSave = new PendingSave(info, snapshot, dirtySections);
+        }
+
+        saveExecutor.execute(this::runPendingSave);
+    }
+
+    private void runPendingSave() {
+        PendingSave save;
+        synchronized (this) {
+            save = pendingSave;
+            pendingSave = null;
+        }
+
+        // Replaced by the final save
+        if (save == null)
+            return;
+
+        saveChanges(save.info, save.snapshot, save.dirtySections);
+    }
+
+    /**
+     * Saves the whole level, and stops the save thread. This skips any
+     * autosave that hasn't started yet, and waits for the save to finish.
+     *
+     * @param info copy of the level properties to save
+     * @param snapshot snapshot of the map to save
+     */
+    public void saveAndClose(ClassicWorldFile info, BlockMap snapshot) {
+        synchronized (this) {
+            // The full save includes everything it would have saved
+            pendingSave = null;
+        }
+
+        CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
+            saveFullLevel(info, snapshot);
+            try {
+                journal.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close level journal");
+                e.printStackTrace();
+            }
+        }, saveExecutor);
+        saveExecutor.shutdown();
+        future.join();
+    }
+
+    // Appends the modified sections to the journal, or saves the whole level
+    // if the journal is too large
+    private void saveChanges(ClassicWorldFile info, BlockMap map, BitSet dirtySections) {
+        try {
+            if (needsFullSave || journal.needsCompaction()) {
+                saveFullLevel(info, map);
+                return;
+            }
+
+            if (dirtySections.isEmpty())
+                return;
+
+            long start = System.nanoTime();
+            long bytes = journal.append(map, dirtySections);
+            recordSave(start, bytes);
+        } catch (IOException e) {
+            System.err.println("Failed to save level changes!");
+            e.printStackTrace();
+
+            // The changes that failed to save are only in the map now
+            needsFullSave = true;
+        }
+    }
+
+    // Saves the whole level to the level file, and starts a new journal
+    private void saveFullLevel(ClassicWorldFile info, BlockMap map) {
+        long journalId = journalIdRandom.nextLong();
+        info.setJournalId(journalId);
+
+        try {
+            System.out.println("Saving level");
+            long start = System.nanoTime();
+            writeLevelFile(info, map);
+            journal.reset(journalId, map);
+            needsFullSave = false;
+
+            fullSaveCount.incrementAndGet();
+            recordSave(start, Files.size(Paths.get(levelFileName)));
+        } catch (IOException e) {
+            System.err.println("Failed to save level!");
+            e.printStackTrace();
+            needsFullSave = true;
+        }
+    }
+
+    private void writeLevelFile(ClassicWorldFile info, BlockMap map) throws IOException {
+        if (NativeLevelFile.isNativeFileName(levelFileName))
+            NativeLevelFile.saveToFile(levelFileName, info, map);
+        else
+            info.saveToFile(levelFileName, map);
+    }
+
+    /**
+     * Saves a copy of the level as a ClassicWorld file in the background,
+     * so it can be used with other software.
+     *
+     * @param info copy of the level properties to save
+     * @param snapshot snapshot of the map to save
+     * @param fileName file to save to
+     */
+    public void exportClassicWorld(ClassicWorldFile info, BlockMap snapshot, String fileName) {
+        saveExecutor.execute(() -> {
+            try {
+                info.exportToFile(fileName, snapshot);
+                System.out.println("Exported level to " + fileName);
+            } catch (IOException e) {
+                System.err.println("Failed to export level to " + fileName);
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private void recordSave(long startTime, long bytesWritten) {
+        long duration = System.nanoTime() - startTime;
+
+        saveCount.incrementAndGet();
+        totalBytesWritten.addAndGet(bytesWritten);
+        totalSaveNanos.addAndGet(duration);
+        lastSaveNanos = duration;
+        lastSaveBytes = bytesWritten;
+    }
+
+    /**
+     * Gets statistics about the saves done so far.
+     *
+     * @return current statistics
+     */
+    public Stats getStats() {
+        return new Stats(
+                saveCount.get(),
+                fullSaveCount.get(),
+                combinedSaveCount.get(),
+                totalBytesWritten.get(),
+                totalSaveNanos.get() / 1_000_000,
+                lastSaveNanos / 1_000_000,
+                lastSaveBytes
+        );
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.rmheuer.voxel.server;
+
+import com.github.rmheuer.voxel.network.packet.ServerLevelDataChunkPacket;
+import com.github.rmheuer.voxel.network.packet.ServerLevelFinalizePacket;
+import com.github.rmheuer.voxel.network.packet.ServerLevelInitPacket;
+import io.netty.buffer.Unpooled;
+
+import java.util.function.Consumer;
+
+/**
+ * Sends compressed level data to one client. Chunks are only sent while the
+ * connection is writable, so a slow client doesn't cause the entire level to
+ * be buffered for it at once. Sending happens on the client's I/O thread.
+ */
+public final class LevelTransfer {
+    private final ClientConnection client;
+    private final byte[] levelData;
+    private final boolean fastMap;
+    private final short sizeX, sizeY, sizeZ;
+    private final Consumer<LevelTransfer> onFinished;
+
+    // Changes to send after the level data, only accessed from the tick thread
+    private final BlockChangeBuffer pendingChanges;
+
+    // Only accessed from the I/O thread
+    private boolean started, finished;
+    private int position;
+
+    /**
+     * @param client client to send the level to
+     * @param levelData compressed level data
+     * @param fastMap whether the data is in the FastMap format
+     * @param sizeX size of the level along the X axis
+     * @param sizeY size of the level along the Y axis
+     * @param sizeZ size of the level along the Z axis
+     * @param pendingChanges buffer for changes to send after the level data
+     * @param onFinished called on the I/O thread once all data is sent
+     */
+    public LevelTransfer(ClientConnection client, byte[] levelData, boolean fastMap, short sizeX, short sizeY, short sizeZ, BlockChangeBuffer pendingChanges, Consumer<LevelTransfer> onFinished) {
+        this.client = client;
+        this.levelData = levelData;
+        this.fastMap = fastMap;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.pendingChanges = pendingChanges;
+        this.onFinished = onFinished;
+
+        started = false;
+        finished = false;
+        position = 0;
+    }
+
+    /**
+     * Sends as many chunks as the connection can currently accept. This
+     * must be called on the client's I/O thread.
+     */
+    public void sendMore() {
+        if (finished)
+            return;
+
+        if (!started) {
+            client.sendPacket(fastMap
+                    ? new ServerLevelInitPacket(sizeX * sizeY * sizeZ)
+                    : ServerLevelInitPacket.INSTANCE);
+            started = true;
+        }
+
+        int chunkSize = ServerLevelDataChunkPacket.MAX_SIZE;
+        while (position < levelData.length && client.isWritable()) {
+            int length = Math.min(chunkSize, levelData.length - position);
+            int percent = (100 * (position + length)) / levelData.length;
+
+            // Chunks share the compressed data instead of copying it
+            client.sendPacket(new ServerLevelDataChunkPacket(
+                    Unpooled.wrappedBuffer(levelData, position, length),
+                    (short) percent
+            ));
+            position += length;
+        }
+
+        if (position == levelData.length) {
+            client.sendPacket(new ServerLevelFinalizePacket(sizeX, sizeY, sizeZ));
+            finished = true;
+            onFinished.accept(this);
+        }
+
+        client.flush();
+    }
+
+    public ClientConnection getClient() {
+        return client;
+    }
+
+    /**
+     * Gets the block changes made while the level was being sent. These are
+     * sent to the client once the transfer finishes.
+     *
+     * @return pending block changes
+     */
+    public BlockChangeBuffer getPendingChanges() {
+        return pendingChanges;
+    }
+}
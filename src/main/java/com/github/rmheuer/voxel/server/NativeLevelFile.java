@@ -0,0 +1,334 @@
+package com.github.rmheuer.voxel.server;
+
+import com.github.rmheuer.nbtlib.NbtIO;
+import com.github.rmheuer.voxel.level.BlockMap;
+import com.github.rmheuer.voxel.level.MapSection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * VoxelGame's own level file format. Unlike ClassicWorld files, the block
+ * data is stored section by section in the same layout as {@link BlockMap},
+ * so loading doesn't need to decompress the whole file and re-chunk the
+ * block array. The file is memory-mapped when loading, so only the parts of
+ * it that are actually read are loaded from disk, and sections made of one
+ * block type take no space at all.
+ * <p>
+ * The file starts with a fixed header, followed by the level properties as
+ * uncompressed NBT in the same structure as a ClassicWorld file without the
+ * block array. Next is a table with an entry for each section, in the same
+ * order as the sections in {@link BlockMap}, and then the section data.
+ * Each section is stored either raw or compressed with DEFLATE, whichever is
+ * smaller.
+ */
+public final class NativeLevelFile {
+    public static final String EXTENSION = ".vgl";
+    private static final String CLASSIC_WORLD_EXTENSION = ".cw";
+
+    private static final int MAGIC = 0x56474C56; // "VGLV"
+    private static final int VERSION = 1;
+    // Magic, version, section counts, padding, and properties length
+    private static final int HEADER_SIZE = 4 + 4 + 3 * 2 + 2 + 4;
+
+    // Section encodings
+    private static final byte SECTION_UNIFORM = 0;
+    private static final byte SECTION_RAW = 1;
+    private static final byte SECTION_DEFLATE = 2;
+    // Encoding, block ID for uniform sections, padding, data length, and
+    // data offset
+    private static final int SECTION_ENTRY_SIZE = 1 + 1 + 2 + 4 + 8;
+
+    private final ClassicWorldFile info;
+    private final BlockMap map;
+
+    private NativeLevelFile(ClassicWorldFile info, BlockMap map) {
+        this.info = info;
+        this.map = map;
+    }
+
+    /**
+     * Gets whether a file should be saved in the native format, based on its
+     * extension.
+     *
+     * @param filename name of the level file
+     * @return whether the file is a native level file
+     */
+    public static boolean isNativeFileName(String filename) {
+        return filename.endsWith(EXTENSION);
+    }
+
+    /**
+     * Gets the name of the ClassicWorld file that a native level file would
+     * be imported from if it doesn't exist yet.
+     *
+     * @param filename name of the native level file
+     * @return name of the ClassicWorld file
+     */
+    public static String getClassicWorldFileName(String filename) {
+        return filename.substring(0, filename.length() - EXTENSION.length()) + CLASSIC_WORLD_EXTENSION;
+    }
+
+    /**
+     * Loads a level from a file in the native format.
+     *
+     * @param filename name of the file to load
+     * @return loaded level
+     * @throws FileNotFoundException if the file doesn't exist
+     * @throws IOException if the file is damaged or fails to load
+     */
+    public static NativeLevelFile loadFromFile(String filename) throws IOException {
+        MappedByteBuffer file;
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Level file is too large to load");
+
+            // The mapping remains valid after the channel is closed
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(filename);
+        }
+
+        try {
+            if (file.getInt() != MAGIC)
+                throw new IOException("Not a native level file");
+            int version = file.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported level file version: " + version);
+
+            int sectionsX = file.getShort();
+            int sectionsY = file.getShort();
+            int sectionsZ = file.getShort();
+            file.getShort();
+            int propertiesLength = file.getInt();
+            if (propertiesLength < 0 || propertiesLength > file.remaining())
+                throw new IOException("Invalid properties length");
+
+            byte[] properties = new byte[propertiesLength];
+            file.get(properties);
+            ClassicWorldFile info;
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(properties))) {
+                info = new ClassicWorldFile(NbtIO.readTagFile(in));
+            }
+            if (info.getSizeX() != sectionsX * MapSection.SIZE
+                    || info.getSizeY() != sectionsY * MapSection.SIZE
+                    || info.getSizeZ() != sectionsZ * MapSection.SIZE)
+                throw new IOException("Level size does not match section counts");
+
+            int tableOffset = file.position();
+            int sectionCount = sectionsX * sectionsY * sectionsZ;
+            if (sectionCount * (long) SECTION_ENTRY_SIZE > file.limit() - tableOffset)
+                throw new IOException("Section table is incomplete");
+
+            BlockMap map = new BlockMap(sectionsX, sectionsY, sectionsZ, (index) -> {
+                try {
+                    return readSection(file, tableOffset + index * SECTION_ENTRY_SIZE);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            return new NativeLevelFile(info, map);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Level file is incomplete", e);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Reads one section. This only uses absolute positions within the file,
+    // so sections can be read from multiple threads
+    private static MapSection readSection(ByteBuffer file, int entryOffset) throws IOException {
+        byte encoding = file.get(entryOffset);
+        if (encoding == SECTION_UNIFORM)
+            return MapSection.uniform(file.get(entryOffset + 1));
+
+        int length = file.getInt(entryOffset + 4);
+        long offset = file.getLong(entryOffset + 8);
+        if (length < 0 || offset < 0 || offset + length > file.limit())
+            throw new IOException("Section data is out of bounds");
+
+        ByteBuffer data = file.duplicate();
+        data.position((int) offset);
+        data.limit((int) offset + length);
+
+        byte[] blockData = new byte[MapSection.SIZE_CUBED];
+        if (encoding == SECTION_RAW) {
+            if (length != blockData.length)
+                throw new IOException("Wrong section data size");
+            data.get(blockData);
+        } else if (encoding == SECTION_DEFLATE) {
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(data);
+                if (inflater.inflate(blockData) != blockData.length)
+                    throw new IOException("Wrong section data size");
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid compressed section data", e);
+            } finally {
+                inflater.end();
+            }
+        } else {
+            throw new IOException("Unknown section encoding: " + encoding);
+        }
+
+        return new MapSection(blockData);
+    }
+
+    /**
+     * Imports a level from a ClassicWorld file.
+     *
+     * @param filename name of the ClassicWorld file
+     * @return imported level
+     * @throws IOException if the file fails to load
+     */
+    public static NativeLevelFile importClassicWorld(String filename) throws IOException {
+        ClassicWorldFile info = ClassicWorldFile.loadFromFile(filename);
+        BlockMap map = new BlockMap(
+                info.getSizeX() / MapSection.SIZE,
+                info.getSizeY() / MapSection.SIZE,
+                info.getSizeZ() / MapSection.SIZE,
+                info.getBlockData()
+        );
+        info.releaseBlockData();
+
+        return new NativeLevelFile(info, map);
+    }
+
+    /**
+     * Saves a level in the native format. Like ClassicWorld files, the file
+     * is replaced safely, keeping the previous file as a backup.
+     *
+     * @param filename file to save to
+     * @param info level properties to save
+     * @param map map to save the blocks of
+     * @throws IOException if an I/O error occurs
+     */
+    public static void saveToFile(String filename, ClassicWorldFile info, BlockMap map) throws IOException {
+        info.markModified();
+        ClassicWorldFile.writeFile(filename, (path) -> writeData(path, info, map));
+    }
+
+    private static void writeData(Path path, ClassicWorldFile info, BlockMap map) throws IOException {
+        ByteArrayOutputStream properties = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(properties)) {
+            NbtIO.writeTagFile(info.saveWithoutBlockData(), out);
+        }
+
+        int sectionsX = map.getSectionsX();
+        int sectionsY = map.getSectionsY();
+        int sectionsZ = map.getSectionsZ();
+        int sectionCount = sectionsX * sectionsY * sectionsZ;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + properties.size());
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putShort((short) sectionsX);
+        header.putShort((short) sectionsY);
+        header.putShort((short) sectionsZ);
+        header.putShort((short) 0);
+        header.putInt(properties.size());
+        header.put(properties.toByteArray());
+        header.flip();
+
+        ByteBuffer table = ByteBuffer.allocate(sectionCount * SECTION_ENTRY_SIZE);
+
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Section data is written first, since the table needs its
+            // offsets
+            channel.position(header.remaining() + table.capacity());
+
+            byte[] blockData = new byte[MapSection.SIZE_CUBED];
+            byte[] compressed = new byte[MapSection.SIZE_CUBED];
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+            try {
+                // Same order as the sections in the map
+                for (int y = 0; y < sectionsY; y++) {
+                    for (int z = 0; z < sectionsZ; z++) {
+                        for (int x = 0; x < sectionsX; x++) {
+                            MapSection section = map.getSection(x, y, z);
+                            if (section.isUniform()) {
+                                table.put(SECTION_UNIFORM);
+                                table.put(section.getBlockId(0, 0, 0));
+                                table.putShort((short) 0);
+                                table.putInt(0);
+                                table.putLong(0);
+                                continue;
+                            }
+
+                            section.unpackBlockData(blockData);
+                            deflater.reset();
+                            deflater.setInput(blockData);
+                            deflater.finish();
+                            int compressedLen = deflater.deflate(compressed);
+
+                            // Store raw if compressing didn't make it smaller
+                            ByteBuffer data;
+                            byte encoding;
+                            if (deflater.finished()) {
+                                encoding = SECTION_DEFLATE;
+                                data = ByteBuffer.wrap(compressed, 0, compressedLen);
+                            } else {
+                                encoding = SECTION_RAW;
+                                data = ByteBuffer.wrap(blockData);
+                            }
+
+                            table.put(encoding);
+                            table.put((byte) 0);
+                            table.putShort((short) 0);
+                            table.putInt(data.remaining());
+                            table.putLong(channel.position());
+                            while (data.hasRemaining()) {
+                                channel.write(data);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                deflater.end();
+            }
+
+            table.flip();
+            channel.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (table.hasRemaining()) {
+                channel.write(table);
+            }
+        }
+    }
+
+    /**
+     * Gets the level properties. This does not contain the block data.
+     *
+     * @return level properties
+     */
+    public ClassicWorldFile getInfo() {
+        return info;
+    }
+
+    public BlockMap getMap() {
+        return map;
+    }
+}
@@ -0,0 +1,193 @@
+package com.github.rmheuer.voxel.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import static com.github.rmheuer.voxel.server.ParallelGzipOutputStream.*;
+
+/**
+ * Input stream that decompresses GZIP data written by
+ * {@link ParallelGzipOutputStream}. The members are found using the
+ * compressed lengths stored in their headers, and several members ahead of
+ * the current one are decompressed in parallel.
+ */
+public final class ParallelGzipInputStream extends InputStream {
+    private final DataInputStream in;
+    private final Queue<CompletableFuture<byte[]>> pendingMembers;
+
+    private byte[] member;
+    private int memberPos;
+    private boolean endOfInput;
+
+    private ParallelGzipInputStream(InputStream in) {
+        this.in = new DataInputStream(in);
+        pendingMembers = new ArrayDeque<>();
+
+        member = new byte[0];
+        memberPos = 0;
+        endOfInput = false;
+    }
+
+    /**
+     * Opens a stream to decompress GZIP data. Data written by
+     * {@link ParallelGzipOutputStream} is decompressed in parallel, and
+     * other GZIP data is decompressed normally.
+     *
+     * @param in stream to read compressed data from
+     * @return stream to read decompressed data from
+     * @throws IOException if an I/O error occurs
+     */
+    public static InputStream open(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+
+        byte[] header = new byte[HEADER_SIZE];
+        buffered.mark(HEADER_SIZE);
+        int read = buffered.readNBytes(header, 0, HEADER_SIZE);
+        buffered.reset();
+
+        if (read == HEADER_SIZE && isParallelHeader(header))
+            return new ParallelGzipInputStream(buffered);
+        return new GZIPInputStream(buffered);
+    }
+
+    private static boolean isParallelHeader(byte[] header) {
+        return readShortLE(header, 0) == GZIP_MAGIC
+                && header[2] == METHOD_DEFLATE
+                && header[3] == FLAG_EXTRA
+                && readShortLE(header, 10) == EXTRA_LENGTH
+                && header[12] == SUBFIELD_ID_1
+                && header[13] == SUBFIELD_ID_2
+                && readShortLE(header, 14) == SUBFIELD_LENGTH;
+    }
+
+    private static int readShortLE(byte[] b, int pos) {
+        return (b[pos] & 0xFF) | (b[pos + 1] & 0xFF) << 8;
+    }
+
+    private static int readIntLE(byte[] b, int pos) {
+        return readShortLE(b, pos) | readShortLE(b, pos + 2) << 16;
+    }
+
+    // Reads members and starts decompressing them until enough are pending
+    private void readAhead() throws IOException {
+        while (!endOfInput && pendingMembers.size() < MAX_PENDING_BLOCKS) {
+            byte[] header = new byte[HEADER_SIZE];
+            int read = in.readNBytes(header, 0, HEADER_SIZE);
+            if (read == 0) {
+                endOfInput = true;
+                break;
+            }
+            if (read < HEADER_SIZE)
+                throw new EOFException("Unexpected end of GZIP member header");
+            if (!isParallelHeader(header))
+                throw new IOException("GZIP member was not written in parallel");
+
+            int compressedLength = readIntLE(header, 16);
+            // Also rejects lengths that would need a huge buffer
+            if (compressedLength < 0 || compressedLength > MAX_COMPRESSED_SIZE)
+                throw new IOException("Invalid GZIP member length");
+
+            byte[] compressed = new byte[compressedLength + TRAILER_SIZE];
+            in.readFully(compressed);
+            pendingMembers.add(CompletableFuture.supplyAsync(() -> decompressMember(compressed), EXECUTOR));
+        }
+    }
+
+    private static byte[] decompressMember(byte[] compressed) {
+        int compressedLength = compressed.length - TRAILER_SIZE;
+        int expectedCrc = readIntLE(compressed, compressedLength);
+        int size = readIntLE(compressed, compressedLength + 4);
+
+        try {
+            if (size < 0 || size > BLOCK_SIZE)
+                throw new IOException("Invalid GZIP member size");
+
+            byte[] data = new byte[size];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(compressed, 0, compressedLength);
+                int count = 0;
+                while (count < size && !inflater.finished() && !inflater.needsInput()) {
+                    count += inflater.inflate(data, count, size - count);
+                }
+                if (count != size)
+                    throw new IOException("GZIP member ended early");
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid compressed data", e);
+            } finally {
+                inflater.end();
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            if ((int) crc.getValue() != expectedCrc)
+                throw new IOException("GZIP member CRC mismatch");
+
+            return data;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Moves to the next decompressed member. Returns false at the end
+    private boolean nextMember() throws IOException {
+        while (memberPos == member.length) {
+            readAhead();
+            if (pendingMembers.isEmpty())
+                return false;
+
+            try {
+                member = pendingMembers.remove().join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof UncheckedIOException)
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                throw new IOException("Failed to decompress block", e.getCause());
+            }
+            memberPos = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextMember())
+            return -1;
+        return member[memberPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!nextMember())
+            return -1;
+
+        int count = Math.min(len, member.length - memberPos);
+        System.arraycopy(member, memberPos, b, off, count);
+        memberPos += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return member.length - memberPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pendingMembers.clear();
+        in.close();
+    }
+}
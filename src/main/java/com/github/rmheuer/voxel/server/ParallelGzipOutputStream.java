@@ -0,0 +1,229 @@
+package com.github.rmheuer.voxel.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream that compresses data into GZIP format using multiple
+ * threads. The data is split into blocks which are compressed independently
+ * on a shared pool of worker threads, and each block is written as a
+ * separate GZIP member. Any GZIP decoder can read the result, since a GZIP
+ * file may contain multiple members.
+ * <p>
+ * Each member's header stores the length of its compressed data, so
+ * {@link ParallelGzipInputStream} can find the members without decompressing
+ * them, and decompress them in parallel as well.
+ */
+public final class ParallelGzipOutputStream extends OutputStream {
+    // Uncompressed size of each member
+    static final int BLOCK_SIZE = 1024 * 1024;
+
+    // Member header: ID, compression method, flags, time, extra flags, OS,
+    // extra field length, then one extra subfield with the compressed length
+    static final int HEADER_SIZE = 10 + 2 + 4 + 4;
+    // CRC and uncompressed size
+    static final int TRAILER_SIZE = 4 + 4;
+
+    static final int GZIP_MAGIC = 0x8B1F;
+    static final int METHOD_DEFLATE = 8;
+    static final int FLAG_EXTRA = 4;
+    static final int OS_UNKNOWN = 255;
+    static final int EXTRA_LENGTH = 4 + 4;
+    static final byte SUBFIELD_ID_1 = 'V';
+    static final byte SUBFIELD_ID_2 = 'G';
+    static final int SUBFIELD_LENGTH = 4;
+
+    // Largest compressed size of a block, if it doesn't compress at all
+    static final int MAX_COMPRESSED_SIZE = BLOCK_SIZE + BLOCK_SIZE / 1000 + 64;
+
+    // Threads shared by all streams for compressing and decompressing blocks
+    static final int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+    static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREAD_COUNT, (r) -> {
+        Thread thread = new Thread(r, "Parallel GZIP");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Limits memory use if compression is faster than writing
+    static final int MAX_PENDING_BLOCKS = THREAD_COUNT * 2;
+
+    private final OutputStream out;
+    private final int level;
+    private final Queue<CompletableFuture<byte[]>> pendingMembers;
+
+    private byte[] block;
+    private int blockSize;
+    private boolean anyMembers;
+    private boolean closed;
+
+    /**
+     * @param out stream to write the compressed data to
+     */
+    public ParallelGzipOutputStream(OutputStream out) {
+        this(out, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param out stream to write the compressed data to
+     * @param level compression level for {@link Deflater}
+     */
+    public ParallelGzipOutputStream(OutputStream out, int level) {
+        this.out = out;
+        this.level = level;
+        pendingMembers = new ArrayDeque<>();
+
+        block = new byte[BLOCK_SIZE];
+        blockSize = 0;
+        anyMembers = false;
+        closed = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[blockSize++] = (byte) b;
+        if (blockSize == BLOCK_SIZE)
+            submitBlock();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = Math.min(len, BLOCK_SIZE - blockSize);
+            System.arraycopy(b, off, block, blockSize, count);
+            blockSize += count;
+            off += count;
+            len -= count;
+
+            if (blockSize == BLOCK_SIZE)
+                submitBlock();
+        }
+    }
+
+    // Starts compressing the current block
+    private void submitBlock() throws IOException {
+        while (pendingMembers.size() >= MAX_PENDING_BLOCKS) {
+            writeMember(pendingMembers.remove());
+        }
+
+        byte[] data = block;
+        int size = blockSize;
+        pendingMembers.add(CompletableFuture.supplyAsync(() -> compressMember(data, size, level), EXECUTOR));
+
+        block = new byte[BLOCK_SIZE];
+        blockSize = 0;
+        anyMembers = true;
+    }
+
+    private void writeMember(CompletableFuture<byte[]> member) throws IOException {
+        try {
+            out.write(member.join());
+        } catch (CompletionException e) {
+            throw new IOException("Failed to compress block", e.getCause());
+        }
+    }
+
+    private static byte[] compressMember(byte[] data, int size, int level) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, size);
+
+        // Leave space for the header, and assume it won't compress at all
+        byte[] member = new byte[HEADER_SIZE + MAX_COMPRESSED_SIZE + TRAILER_SIZE];
+        int pos = HEADER_SIZE;
+
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, 0, size);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (pos == member.length - TRAILER_SIZE) {
+                    byte[] larger = new byte[member.length * 2];
+                    System.arraycopy(member, 0, larger, 0, pos);
+                    member = larger;
+                }
+                pos += deflater.deflate(member, pos, member.length - TRAILER_SIZE - pos);
+            }
+        } finally {
+            deflater.end();
+        }
+        int compressedLength = pos - HEADER_SIZE;
+
+        writeShortLE(member, 0, GZIP_MAGIC);
+        member[2] = (byte) METHOD_DEFLATE;
+        member[3] = (byte) FLAG_EXTRA;
+        writeIntLE(member, 4, 0); // No modification time
+        member[8] = 0;
+        member[9] = (byte) OS_UNKNOWN;
+        writeShortLE(member, 10, EXTRA_LENGTH);
+        member[12] = SUBFIELD_ID_1;
+        member[13] = SUBFIELD_ID_2;
+        writeShortLE(member, 14, SUBFIELD_LENGTH);
+        writeIntLE(member, 16, compressedLength);
+
+        writeIntLE(member, pos, (int) crc.getValue());
+        writeIntLE(member, pos + 4, size);
+        pos += TRAILER_SIZE;
+
+        if (pos == member.length)
+            return member;
+        byte[] trimmed = new byte[pos];
+        System.arraycopy(member, 0, trimmed, 0, pos);
+        return trimmed;
+    }
+
+    private static void writeShortLE(byte[] b, int pos, int value) {
+        b[pos] = (byte) value;
+        b[pos + 1] = (byte) (value >>> 8);
+    }
+
+    private static void writeIntLE(byte[] b, int pos, int value) {
+        writeShortLE(b, pos, value);
+        writeShortLE(b, pos + 2, value >>> 16);
+    }
+
+    /**
+     * Writes the blocks that have finished compressing. This does not end
+     * the current block, since that would make the output larger.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!pendingMembers.isEmpty() && pendingMembers.peek().isDone()) {
+            writeMember(pendingMembers.remove());
+        }
+        out.flush();
+    }
+
+    /**
+     * Compresses the remaining data, waits for all blocks to be written, and
+     * closes the underlying stream.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+
+        try {
+            // Empty input still needs one member to be valid GZIP
+            if (blockSize > 0 || !anyMembers)
+                submitBlock();
+            while (!pendingMembers.isEmpty()) {
+                writeMember(pendingMembers.remove());
+            }
+        } finally {
+            block = null;
+            out.close();
+        }
+    }
+}
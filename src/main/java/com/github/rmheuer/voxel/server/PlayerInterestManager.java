@@ -0,0 +1,190 @@
+package com.github.rmheuer.voxel.server;
+
+import com.github.rmheuer.voxel.level.BlockMap;
+import com.github.rmheuer.voxel.level.MapSection;
+import com.github.rmheuer.voxel.network.packet.ServerDespawnPlayerPacket;
+import org.joml.Vector3f;
+
+import java.util.*;
+
+/**
+ * Tracks which players are close enough to see each other, so that movement
+ * only needs to be sent to nearby players. Players are placed into a grid of
+ * section columns, so finding nearby players only needs to check the columns
+ * around the player. This should only be used from the tick thread.
+ */
+public final class PlayerInterestManager {
+    // Players are despawned slightly further away than they are spawned, so
+    // that players moving along the edge of the radius don't keep respawning
+    private static final float LEAVE_MARGIN = 4;
+
+    private static final class TrackedPlayer {
+        int column;
+        final Set<ClientConnection> visible;
+
+        TrackedPlayer(int column) {
+            this.column = column;
+            visible = new HashSet<>();
+        }
+    }
+
+    private final int columnsX, columnsZ;
+    private final List<ClientConnection>[] columns;
+    private final Map<ClientConnection, TrackedPlayer> players;
+
+    private float radius;
+
+    /**
+     * @param map map the players are in
+     * @param radius distance within which players can see each other
+     */
+    @SuppressWarnings("unchecked")
+    public PlayerInterestManager(BlockMap map, float radius) {
+        columnsX = map.getSectionsX();
+        columnsZ = map.getSectionsZ();
+        columns = new List[columnsX * columnsZ];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new ArrayList<>();
+        }
+        players = new HashMap<>();
+
+        this.radius = radius;
+    }
+
+    /**
+     * Adds a player, and spawns it for all nearby players.
+     *
+     * @param player player to add
+     */
+    public void addPlayer(ClientConnection player) {
+        int column = getColumn(player.getPosition());
+        columns[column].add(player);
+        players.put(player, new TrackedPlayer(column));
+
+        updatePlayer(player);
+    }
+
+    /**
+     * Removes a player, and despawns it for all players that could see it.
+     *
+     * @param player player to remove
+     */
+    public void removePlayer(ClientConnection player) {
+        TrackedPlayer tracked = players.remove(player);
+        if (tracked == null)
+            return;
+
+        columns[tracked.column].remove(player);
+        for (ClientConnection other : tracked.visible) {
+            players.get(other).visible.remove(player);
+            other.sendPacket(new ServerDespawnPlayerPacket(player.getPlayerId()));
+        }
+    }
+
+    /**
+     * Updates which players can see a player after it moves. Players that
+     * came into range are spawned, and players that went out of range are
+     * despawned.
+     *
+     * @param player player that moved
+     */
+    public void updatePlayer(ClientConnection player) {
+        TrackedPlayer tracked = players.get(player);
+        if (tracked == null)
+            return;
+
+        Vector3f pos = player.getPosition();
+        int column = getColumn(pos);
+        if (column != tracked.column) {
+            columns[tracked.column].remove(player);
+            columns[column].add(player);
+            tracked.column = column;
+        }
+
+        // Check for players that went out of range
+        float leaveRadius = radius + LEAVE_MARGIN;
+        Iterator<ClientConnection> iter = tracked.visible.iterator();
+        while (iter.hasNext()) {
+            ClientConnection other = iter.next();
+            if (horizontalDistanceSq(pos, other.getPosition()) > leaveRadius * leaveRadius) {
+                iter.remove();
+                players.get(other).visible.remove(player);
+
+                player.sendPacket(new ServerDespawnPlayerPacket(other.getPlayerId()));
+                other.sendPacket(new ServerDespawnPlayerPacket(player.getPlayerId()));
+            }
+        }
+
+        // Check for players that came into range
+        int columnRadius = (int) Math.ceil(radius / MapSection.SIZE);
+        int centerX = column % columnsX;
+        int centerZ = column / columnsX;
+        int minX = Math.max(0, centerX - columnRadius);
+        int minZ = Math.max(0, centerZ - columnRadius);
+        int maxX = Math.min(columnsX - 1, centerX + columnRadius);
+        int maxZ = Math.min(columnsZ - 1, centerZ + columnRadius);
+        for (int z = minZ; z <= maxZ; z++) {
+            for (int x = minX; x <= maxX; x++) {
+                for (ClientConnection other : columns[x + z * columnsX]) {
+                    if (other == player || tracked.visible.contains(other))
+                        continue;
+                    if (horizontalDistanceSq(pos, other.getPosition()) > radius * radius)
+                        continue;
+
+                    tracked.visible.add(other);
+                    players.get(other).visible.add(player);
+
+                    player.sendPacket(other.makeSpawnPlayerPacket());
+                    other.sendPacket(player.makeSpawnPlayerPacket());
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the players that can currently see a player. These are the
+     * players that should be sent the player's movement.
+     *
+     * @param player player to get viewers of
+     * @return players that can see the player
+     */
+    public Collection<ClientConnection> getViewers(ClientConnection player) {
+        TrackedPlayer tracked = players.get(player);
+        if (tracked == null)
+            return Collections.emptySet();
+        return Collections.unmodifiableSet(tracked.visible);
+    }
+
+    /**
+     * Sets the distance within which players can see each other, and updates
+     * all players to use the new distance.
+     *
+     * @param radius new radius
+     */
+    public void setRadius(float radius) {
+        this.radius = radius;
+        for (ClientConnection player : players.keySet()) {
+            updatePlayer(player);
+        }
+    }
+
+    public float getRadius() {
+        return radius;
+    }
+
+    // Gets the grid column containing a position. Positions outside the map
+    // are put in the nearest column at the edge of the map
+    private int getColumn(Vector3f pos) {
+        int x = Math.floorDiv((int) Math.floor(pos.x), MapSection.SIZE);
+        int z = Math.floorDiv((int) Math.floor(pos.z), MapSection.SIZE);
+        x = Math.max(0, Math.min(columnsX - 1, x));
+        z = Math.max(0, Math.min(columnsZ - 1, z));
+        return x + z * columnsX;
+    }
+
+    private float horizontalDistanceSq(Vector3f a, Vector3f b) {
+        float dx = a.x - b.x;
+        float dz = a.z - b.z;
+        return dx * dx + dz * dz;
+    }
+}
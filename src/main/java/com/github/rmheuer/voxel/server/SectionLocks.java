@@ -0,0 +1,68 @@
+package com.github.rmheuer.voxel.server;
+
+import com.github.rmheuer.voxel.level.BlockMap;
+import com.github.rmheuer.voxel.level.MapSection;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks guarding the sections of a {@link BlockMap}. Each section is assigned
+ * to one of a fixed number of lock stripes, so accesses to different sections
+ * can usually happen in parallel.
+ */
+public final class SectionLocks {
+    private static final int STRIPE_COUNT = 64;
+
+    private final int sectionsX, sectionsZ;
+    private final ReentrantLock[] stripes;
+
+    /**
+     * @param map map the locks will guard
+     */
+    public SectionLocks(BlockMap map) {
+        sectionsX = map.getSectionsX();
+        sectionsZ = map.getSectionsZ();
+
+        stripes = new ReentrantLock[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Gets the lock for the section containing a block position. This must be
+     * held while reading or modifying blocks within the section.
+     *
+     * @param blockX x coordinate of block
+     * @param blockY y coordinate of block
+     * @param blockZ z coordinate of block
+     * @return lock for the section
+     */
+    public ReentrantLock getLock(int blockX, int blockY, int blockZ) {
+        int sectionX = blockX / MapSection.SIZE;
+        int sectionY = blockY / MapSection.SIZE;
+        int sectionZ = blockZ / MapSection.SIZE;
+
+        int sectionIndex = sectionX + sectionZ * sectionsX + sectionY * sectionsX * sectionsZ;
+        return stripes[sectionIndex % STRIPE_COUNT];
+    }
+
+    /**
+     * Acquires the locks for every section. Locks are always acquired in the
+     * same order, so this can not deadlock with another call to this method.
+     */
+    public void lockAll() {
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+    }
+
+    /**
+     * Releases the locks acquired by {@link #lockAll()}.
+     */
+    public void unlockAll() {
+        for (int i = STRIPE_COUNT - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+    }
+}